@@ -0,0 +1,93 @@
+/**
+ * Benchmark: JWT signing and verification throughput per algorithm
+ *
+ * Signs and verifies access-token-shaped payloads with each supported
+ * algorithm on a single core, using the same code paths as JwtService
+ * (jsonwebtoken for RS256/ES256, server/jws.ts for EdDSA).
+ *
+ * To run:
+ * npx tsx bench/jwt-algorithms.ts [durationMs]
+ */
+
+import crypto, { KeyObject } from 'crypto';
+import jwt from 'jsonwebtoken';
+import { signEdDSA, verifyEdDSA } from '../server/jws';
+
+const DURATION_MS = parseInt(process.argv[2] || '2000', 10);
+
+const payload = {
+  sub: '665f1c2e9b1e8a0012345678',
+  client_id: '665f1c2e9b1e8a0087654321',
+  scope: ['read', 'profile', 'email'],
+  type: 'access_token',
+  jti: 'q2V6pU1l0sQyQk8Xc3d2Ww'
+};
+
+interface Algorithm {
+  name: string;
+  keys: { privateKey: KeyObject; publicKey: KeyObject };
+  sign(privateKey: KeyObject): string;
+  verify(token: string, publicKey: KeyObject): unknown;
+}
+
+const algorithms: Algorithm[] = [
+  {
+    name: 'RS256',
+    keys: crypto.generateKeyPairSync('rsa', { modulusLength: 2048 }),
+    sign: (key) => jwt.sign(payload, key as any, { algorithm: 'RS256', expiresIn: '1h', keyid: 'bench' }),
+    verify: (token, key) => jwt.verify(token, key as any, { algorithms: ['RS256'] })
+  },
+  {
+    name: 'ES256',
+    keys: crypto.generateKeyPairSync('ec', { namedCurve: 'P-256' }),
+    sign: (key) => jwt.sign(payload, key as any, { algorithm: 'ES256', expiresIn: '1h', keyid: 'bench' }),
+    verify: (token, key) => jwt.verify(token, key as any, { algorithms: ['ES256'] })
+  },
+  {
+    name: 'EdDSA',
+    keys: crypto.generateKeyPairSync('ed25519'),
+    sign: (key) => signEdDSA(payload, key, { keyid: 'bench', expiresIn: '1h' }),
+    verify: (token, key) => verifyEdDSA(token, key)
+  }
+];
+
+function measure(operation: () => void): number {
+  // Warm up so JIT compilation is not part of the measurement
+  for (let i = 0; i < 100; i++) operation();
+
+  let count = 0;
+  const start = process.hrtime.bigint();
+  const deadline = start + BigInt(DURATION_MS) * 1_000_000n;
+  let now = start;
+  while (now < deadline) {
+    for (let i = 0; i < 50; i++) operation();
+    count += 50;
+    now = process.hrtime.bigint();
+  }
+  const seconds = Number(now - start) / 1e9;
+  return count / seconds;
+}
+
+function main() {
+  console.log(`JWT algorithm benchmark (${DURATION_MS}ms per measurement, single thread)`);
+  console.log('');
+
+  const results = algorithms.map(algorithm => {
+    const token = algorithm.sign(algorithm.keys.privateKey);
+    const signPerSecond = measure(() => algorithm.sign(algorithm.keys.privateKey));
+    const verifyPerSecond = measure(() => algorithm.verify(token, algorithm.keys.publicKey));
+    return { algorithm: algorithm.name, signPerSecond, verifyPerSecond, tokenBytes: token.length };
+  });
+
+  const baseline = results[0];
+  console.table(results.map(result => ({
+    algorithm: result.algorithm,
+    'sign/s': Math.round(result.signPerSecond),
+    'sign vs RS256': `${(result.signPerSecond / baseline.signPerSecond).toFixed(1)}x`,
+    'verify/s': Math.round(result.verifyPerSecond),
+    'verify vs RS256': `${(result.verifyPerSecond / baseline.verifyPerSecond).toFixed(1)}x`,
+    'token bytes': result.tokenBytes
+  })));
+}
+
+main();
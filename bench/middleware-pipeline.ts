@@ -0,0 +1,152 @@
+/**
+ * Benchmark: introspection throughput behind the baseline middleware vs the
+ * route-specific pipeline
+ *
+ * Serves an introspection-shaped handler twice and drives each over
+ * keep-alive HTTP from the same process:
+ * - baseline: what every request ran before the pipeline, i.e. the
+ *   JSON-capturing request logger followed by cookie-parser, express-session
+ *   (resave and saveUninitialized, as in auth.ts) and passport;
+ * - pipeline: createPipeline(pipelineProfiles) exactly as routes.ts mounts it,
+ *   which for /oauth/introspect is attachTenant, audit and sampled logging,
+ *   with the per-client introspection limiter in the handler.
+ * The baseline's sessions go to an in-memory store, so it does not pay the
+ * MongoDB write that every cookieless request cost in production; the real
+ * gap is larger than reported. Audit events go to /dev/null.
+ *
+ * To run:
+ * npx tsx bench/middleware-pipeline.ts [durationMs] [concurrency]
+ */
+
+import http from 'http';
+import type { AddressInfo } from 'net';
+import express, { type Request, type Response, type RequestHandler } from 'express';
+import session from 'express-session';
+import { captureRawBody } from '../server/middleware/threatScanner';
+
+const DURATION_MS = parseInt(process.argv[2] || '5000', 10);
+const CONCURRENCY = parseInt(process.argv[3] || '32', 10);
+
+// Must be set before the middleware modules are loaded
+process.env.AUDIT_SINK = 'file';
+process.env.AUDIT_LOG_FILE = '/dev/null';
+process.env.LOG_SAMPLE_RATE ||= '0.01';
+process.env.MONGODB_URI ||= 'mongodb://127.0.0.1:27017/bench'; // imported, never queried
+process.env.RATE_LIMIT_STORE = 'memory';
+process.env.INTROSPECTION_RATE_LIMIT = '1000000000'; // counted, never rejects
+
+const body = JSON.stringify({ token: 'eyJhbGciOiJSUzI1NiJ9.e30.c2ln', token_type_hint: 'access_token' });
+
+type Handler = (req: Request, res: Response) => Promise<void>;
+
+function createApp(chain: RequestHandler[], handler: Handler) {
+  const app = express();
+  app.use(express.json({ verify: captureRawBody }));
+  app.use(express.urlencoded({ extended: false, verify: captureRawBody }));
+  app.use(...chain);
+  app.post('/oauth/introspect', handler);
+  return app;
+}
+
+async function measure(chain: RequestHandler[], handler: Handler): Promise<{ requestsPerSecond: number; p99Ms: number }> {
+  const server = http.createServer(createApp(chain, handler));
+  await new Promise<void>(resolve => server.listen(0, '127.0.0.1', resolve));
+  const { port } = server.address() as AddressInfo;
+  const agent = new http.Agent({ keepAlive: true, maxSockets: CONCURRENCY });
+
+  const request = () => new Promise<void>((resolve, reject) => {
+    const req = http.request({
+      host: '127.0.0.1',
+      port,
+      path: '/oauth/introspect',
+      method: 'POST',
+      agent,
+      headers: {
+        'Content-Type': 'application/json',
+        'Content-Length': Buffer.byteLength(body),
+        'Authorization': 'Basic ' + Buffer.from('bench:secret').toString('base64')
+      }
+    }, res => {
+      res.resume();
+      res.on('end', () => res.statusCode === 200 ? resolve() : reject(new Error(`HTTP ${res.statusCode}`)));
+    });
+    req.on('error', reject);
+    req.end(body);
+  });
+
+  // Warm up so JIT compilation and connection setup are not measured
+  for (let i = 0; i < 500; i++) await request();
+
+  const latencies: number[] = [];
+  const deadline = Date.now() + DURATION_MS;
+  const start = process.hrtime.bigint();
+  await Promise.all(Array.from({ length: CONCURRENCY }, async () => {
+    while (Date.now() < deadline) {
+      const requestStart = process.hrtime.bigint();
+      await request();
+      latencies.push(Number(process.hrtime.bigint() - requestStart) / 1e6);
+    }
+  }));
+  const seconds = Number(process.hrtime.bigint() - start) / 1e9;
+
+  agent.destroy();
+  await new Promise(resolve => server.close(resolve));
+
+  latencies.sort((a, b) => a - b);
+  return {
+    requestsPerSecond: latencies.length / seconds,
+    p99Ms: latencies[Math.floor(latencies.length * 0.99)]
+  };
+}
+
+async function main() {
+  const { sessionMiddleware } = await import('../server/auth');
+  const { apiRequestLogger, createPipeline, pipelineProfiles } = await import('../server/middleware/pipeline');
+  const { createClientRateLimiter, introspectionRateLimiter } = await import('../server/middleware/rateLimiter');
+
+  const introspectionResult = { active: true, scope: 'read profile', client_id: 'bench', token_type: 'Bearer' };
+  const limitIntrospection = createClientRateLimiter(introspectionRateLimiter);
+
+  const variants: { name: string; chain: RequestHandler[]; handler: Handler }[] = [
+    {
+      name: 'baseline (logger + session)',
+      chain: [apiRequestLogger, ...sessionMiddleware(new session.MemoryStore())],
+      handler: async (_req, res) => {
+        res.json(introspectionResult);
+      }
+    },
+    {
+      name: 'introspection profile',
+      chain: [createPipeline(pipelineProfiles)],
+      handler: async (req, res) => {
+        if (await limitIntrospection(req, res, 'bench')) {
+          res.json(introspectionResult);
+        }
+      }
+    }
+  ];
+
+  console.log(`Middleware pipeline benchmark (${DURATION_MS}ms per variant, ${CONCURRENCY} connections)`);
+  console.log('');
+
+  const results = [];
+  for (const variant of variants) {
+    results.push({ name: variant.name, ...(await measure(variant.chain, variant.handler)) });
+  }
+
+  const baseline = results[0];
+  console.table(results.map(result => ({
+    pipeline: result.name,
+    'req/s': Math.round(result.requestsPerSecond),
+    'vs baseline': `${(result.requestsPerSecond / baseline.requestsPerSecond).toFixed(2)}x`,
+    'p99 ms': result.p99Ms.toFixed(2)
+  })));
+
+  // The db module keeps a connection attempt open
+  process.exit(0);
+}
+
+main().catch(error => {
+  console.error(error);
+  process.exit(1);
+});
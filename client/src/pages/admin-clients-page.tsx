@@ -47,7 +47,7 @@ import {
   AlertDialogHeader,
   AlertDialogTitle,
 } from "@/components/ui/alert-dialog";
-import { Loader2, PlusCircle, Pencil, Trash2, Info, Link2, Copy } from "lucide-react";
+import { Loader2, PlusCircle, Pencil, Trash2, Info, Link2, Copy, RefreshCw } from "lucide-react";
 import { Textarea } from "@/components/ui/textarea";
 
 // Extended Client type to handle string-based form inputs
@@ -74,6 +74,8 @@ export default function AdminClientsPage() {
   const [createDialogOpen, setCreateDialogOpen] = useState(false);
   const [deleteDialogOpen, setDeleteDialogOpen] = useState(false);
   const [detailsDialogOpen, setDetailsDialogOpen] = useState(false);
+  const [rotateDialogOpen, setRotateDialogOpen] = useState(false);
+  const [rotatedSecret, setRotatedSecret] = useState<string | null>(null);
   const [newClient, setNewClient] = useState<NewClientFormData>({
     name: "",
     description: "",
@@ -191,6 +193,32 @@ export default function AdminClientsPage() {
     }
   });
 
+  // Mutation to issue a new client secret; the response is the only place it appears
+  const rotateSecretMutation = useMutation({
+    mutationFn: async () => {
+      const clientId = selectedClient?._id.toString();
+      if (!clientId) throw new Error("No client selected");
+      
+      const res = await apiRequest("POST", `/api/clients/${clientId}/rotate-secret`);
+      return await res.json();
+    },
+    onSuccess: (client: Client) => {
+      toast({
+        title: "Secret Rotated",
+        description: "The previous client secret no longer works.",
+      });
+      setRotatedSecret(client.clientSecret ?? null);
+      setRotateDialogOpen(false);
+    },
+    onError: (error) => {
+      toast({
+        title: "Rotation Failed",
+        description: error.message || "Failed to rotate client secret.",
+        variant: "destructive",
+      });
+    }
+  });
+
   // Handler for opening the edit dialog
   const handleEditClient = (client: Client) => {
     // Convert arrays to comma-separated strings for the form
@@ -211,6 +239,7 @@ export default function AdminClientsPage() {
   // Handler for opening the details dialog
   const handleViewDetails = (client: Client) => {
     setSelectedClient(client);
+    setRotatedSecret(null);
     setDetailsDialogOpen(true);
   };
 
@@ -588,24 +617,39 @@ export default function AdminClientsPage() {
             
             <div className="space-y-2">
               <Label className="text-sm">Client Secret</Label>
-              <div className="flex items-center justify-between gap-2 rounded-md border p-2 font-mono text-sm">
-                <span className="truncate">{selectedClient?.clientSecret}</span>
-                <Button 
-                  variant="ghost" 
-                  size="sm"
-                  onClick={() => 
-                    copyToClipboard(
-                      selectedClient?.clientSecret || "", 
-                      "Client Secret copied to clipboard"
-                    )
-                  }
-                >
-                  <Copy className="h-3 w-3" />
-                </Button>
-              </div>
-              <p className="text-xs text-destructive font-medium">
-                Keep this value confidential and secure!
-              </p>
+              {rotatedSecret ? (
+                <>
+                  <div className="flex items-center justify-between gap-2 rounded-md border p-2 font-mono text-sm">
+                    <span className="truncate">{rotatedSecret}</span>
+                    <Button 
+                      variant="ghost" 
+                      size="sm"
+                      onClick={() => 
+                        copyToClipboard(rotatedSecret, "Client Secret copied to clipboard")
+                      }
+                    >
+                      <Copy className="h-3 w-3" />
+                    </Button>
+                  </div>
+                  <p className="text-xs text-destructive font-medium">
+                    Copy this secret now. It is stored hashed and cannot be shown again.
+                  </p>
+                </>
+              ) : (
+                <div className="flex items-center justify-between gap-2 rounded-md border p-2 font-mono text-sm">
+                  <span className="truncate text-muted-foreground">
+                    Stored hashed; only shown when issued
+                  </span>
+                  <Button 
+                    variant="ghost" 
+                    size="sm"
+                    onClick={() => setRotateDialogOpen(true)}
+                  >
+                    <RefreshCw className="h-3 w-3 mr-1" />
+                    Rotate
+                  </Button>
+                </div>
+              )}
             </div>
             
             <div className="space-y-2">
@@ -681,6 +725,31 @@ export default function AdminClientsPage() {
         </DialogContent>
       </Dialog>
 
+      {/* Rotate Secret Confirmation Dialog */}
+      <AlertDialog open={rotateDialogOpen} onOpenChange={setRotateDialogOpen}>
+        <AlertDialogContent>
+          <AlertDialogHeader>
+            <AlertDialogTitle>Rotate client secret?</AlertDialogTitle>
+            <AlertDialogDescription>
+              A new secret will be issued for "{selectedClient?.name}" and the current one will stop working
+              immediately. Applications using it must be updated.
+            </AlertDialogDescription>
+          </AlertDialogHeader>
+          <AlertDialogFooter>
+            <AlertDialogCancel>Cancel</AlertDialogCancel>
+            <AlertDialogAction
+              onClick={() => rotateSecretMutation.mutate()}
+              disabled={rotateSecretMutation.isPending}
+            >
+              {rotateSecretMutation.isPending && (
+                <Loader2 className="h-4 w-4 mr-2 animate-spin" />
+              )}
+              Rotate Secret
+            </AlertDialogAction>
+          </AlertDialogFooter>
+        </AlertDialogContent>
+      </AlertDialog>
+
       {/* Delete Client Confirmation Dialog */}
       <AlertDialog open={deleteDialogOpen} onOpenChange={setDeleteDialogOpen}>
         <AlertDialogContent>
@@ -3,6 +3,17 @@ import { useQuery, useMutation } from "@tanstack/react-query";
 import { Button } from "@/components/ui/button";
 import { Card, CardContent, CardDescription, CardHeader, CardTitle, CardFooter } from "@/components/ui/card";
 import { Dialog, DialogContent, DialogHeader, DialogTitle, DialogTrigger } from "@/components/ui/dialog";
+import {
+  AlertDialog,
+  AlertDialogAction,
+  AlertDialogCancel,
+  AlertDialogContent,
+  AlertDialogDescription,
+  AlertDialogFooter,
+  AlertDialogHeader,
+  AlertDialogTitle,
+  AlertDialogTrigger,
+} from "@/components/ui/alert-dialog";
 import { Input } from "@/components/ui/input";
 import { Form, FormControl, FormField, FormItem, FormLabel, FormMessage } from "@/components/ui/form";
 import { useForm } from "react-hook-form";
@@ -202,6 +213,17 @@ export default function HomePage() {
 }
 
 function ClientCard({ client }: { client: Client }) {
+  const [rotatedSecret, setRotatedSecret] = useState<string | null>(null);
+  const rotateSecretMutation = useMutation({
+    mutationFn: async () => {
+      const res = await apiRequest("POST", `/api/clients/${client._id.toString()}/rotate-secret`);
+      return res.json();
+    },
+    onSuccess: (rotated: Client) => {
+      setRotatedSecret(rotated.clientSecret ?? null);
+    },
+  });
+
   return (
     <Card className="h-full">
       <CardHeader className="pb-3">
@@ -220,8 +242,42 @@ function ClientCard({ client }: { client: Client }) {
         <div>
           <div className="text-xs sm:text-sm font-medium mb-1">Client Secret</div>
           <div className="text-xs sm:text-sm text-muted-foreground break-all font-mono bg-muted p-2 rounded">
-            {client.clientSecret}
+            {rotatedSecret ?? client.clientSecret ?? "Only shown once, when it is issued"}
           </div>
+          {rotatedSecret ? (
+            <p className="text-xs text-destructive font-medium mt-1">
+              Copy this secret now. It is stored hashed and cannot be shown again.
+            </p>
+          ) : (
+            <AlertDialog>
+              <AlertDialogTrigger asChild>
+                <Button variant="outline" size="sm" className="mt-2">
+                  Rotate Secret
+                </Button>
+              </AlertDialogTrigger>
+              <AlertDialogContent>
+                <AlertDialogHeader>
+                  <AlertDialogTitle>Rotate client secret?</AlertDialogTitle>
+                  <AlertDialogDescription>
+                    A new secret will be issued and the current one will stop working immediately.
+                  </AlertDialogDescription>
+                </AlertDialogHeader>
+                <AlertDialogFooter>
+                  <AlertDialogCancel>Cancel</AlertDialogCancel>
+                  <AlertDialogAction
+                    onClick={() => rotateSecretMutation.mutate()}
+                    disabled={rotateSecretMutation.isPending}
+                  >
+                    {rotateSecretMutation.isPending && <Loader2 className="mr-2 h-4 w-4 animate-spin" />}
+                    Rotate Secret
+                  </AlertDialogAction>
+                </AlertDialogFooter>
+              </AlertDialogContent>
+            </AlertDialog>
+          )}
+          {rotateSecretMutation.error && (
+            <p className="text-xs text-destructive mt-1">{rotateSecretMutation.error.message}</p>
+          )}
         </div>
       </CardContent>
       <CardFooter className="pt-3 border-t">
@@ -235,6 +291,7 @@ function ClientCard({ client }: { client: Client }) {
 }
 
 function RegisterClientDialog() {
+  const [createdSecret, setCreatedSecret] = useState<string | null>(null);
   const form = useForm<InsertClient>({
     resolver: zodResolver(insertClientSchema),
     defaultValues: {
@@ -250,14 +307,15 @@ function RegisterClientDialog() {
       const res = await apiRequest("POST", "/api/clients", data);
       return res.json();
     },
-    onSuccess: () => {
+    onSuccess: (client: Client) => {
       queryClient.invalidateQueries({ queryKey: ["/api/clients"] });
+      setCreatedSecret(client.clientSecret ?? null);
       form.reset();
     },
   });
 
   return (
-    <Dialog>
+    <Dialog onOpenChange={(open) => !open && setCreatedSecret(null)}>
       <DialogTrigger asChild>
         <Button>Register New Application</Button>
       </DialogTrigger>
@@ -265,6 +323,17 @@ function RegisterClientDialog() {
         <DialogHeader>
           <DialogTitle>Register OAuth2 Client</DialogTitle>
         </DialogHeader>
+        {createdSecret && (
+          <div>
+            <div className="text-xs sm:text-sm font-medium mb-1">Client Secret</div>
+            <div className="text-xs sm:text-sm text-muted-foreground break-all font-mono bg-muted p-2 rounded">
+              {createdSecret}
+            </div>
+            <p className="text-xs text-destructive font-medium mt-1">
+              Copy this secret now. It is stored hashed and cannot be shown again.
+            </p>
+          </div>
+        )}
         <Form {...form}>
           <form 
             onSubmit={form.handleSubmit((data) => {
@@ -16,8 +16,15 @@ db.createUser({
 });
 
 // Create collections with appropriate indexes
+// Keep in sync with requiredIndexes in server/indexes.ts, which also creates
+// any missing ones at startup
 db.createCollection('users');
-db.users.createIndex({ username: 1 }, { unique: true });
+db.users.createIndex({ username: 1, tenantId: 1 }, { unique: true });
+db.users.createIndex({ tenantId: 1 });
+db.users.createIndex({ lastLogin: 1 }, { sparse: true });
+
+db.createCollection('tenants');
+db.tenants.createIndex({ domain: 1 }, { unique: true });
 
 db.createCollection('webauthn_credentials');
 db.webauthn_credentials.createIndex({ credentialID: 1 }, { unique: true });
@@ -26,17 +33,38 @@ db.webauthn_credentials.createIndex({ userId: 1 });
 db.createCollection('clients');
 db.clients.createIndex({ clientId: 1 }, { unique: true });
 db.clients.createIndex({ userId: 1 });
+db.clients.createIndex({ tenantId: 1 });
 
-db.createCollection('auth_codes');
-db.auth_codes.createIndex({ code: 1 }, { unique: true });
-db.auth_codes.createIndex({ expiresAt: 1 }, { expireAfterSeconds: 0 });
+db.createCollection('authCodes');
+db.authCodes.createIndex({ code: 1 }, { unique: true });
+db.authCodes.createIndex({ clientId: 1 });
+db.authCodes.createIndex({ expiresAt: 1 }, { expireAfterSeconds: 0 });
 
 db.createCollection('tokens');
-db.tokens.createIndex({ accessToken: 1 }, { unique: true, sparse: true });
+db.tokens.createIndex({ jti: 1 }, { unique: true, sparse: true });
 db.tokens.createIndex({ refreshToken: 1 }, { unique: true, sparse: true });
+db.tokens.createIndex({ clientId: 1 });
 db.tokens.createIndex({ expiresAt: 1 }, { expireAfterSeconds: 0 });
 
-db.createCollection('jwt_keys');
+db.createCollection('revokedTokens');
+db.revokedTokens.createIndex({ tokenId: 1, type: 1 });
+db.revokedTokens.createIndex({ revokedAt: 1 });
+db.revokedTokens.createIndex({ expiresAt: 1 }, { expireAfterSeconds: 0 });
+
+// Audit events (AUDIT_SINK=mongo), kept for 90 days
+db.auditLogs.createIndex({ timestamp: 1 }, { expireAfterSeconds: 90 * 24 * 60 * 60 });
+db.auditLogs.createIndex({ tenantId: 1, timestamp: -1, _id: -1 });
+db.auditLogs.createIndex({ userId: 1, timestamp: -1, _id: -1 });
+db.auditLogs.createIndex({ clientId: 1, timestamp: -1, _id: -1 });
+db.auditLogs.createIndex({ eventType: 1, timestamp: -1, _id: -1 });
+
+// Shared rate limit counters (RATE_LIMIT_STORE=mongo)
+db.rateLimits.createIndex({ expiresAt: 1 }, { expireAfterSeconds: 0 });
+
+db.createCollection('jwtKeys');
+db.jwtKeys.createIndex({ isActive: 1, algorithm: 1 });
+db.jwtKeys.createIndex({ status: 1, algorithm: 1 });
+db.jwtKeys.createIndex({ verifyUntil: 1 });
 
 // Optional: Create a default admin user for initial setup
 // Comment this out in production or modify with secure credentials
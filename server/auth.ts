@@ -25,13 +25,12 @@ import passport from "passport";
 import { Strategy as LocalStrategy } from "passport-local";
 import { Strategy as GitHubStrategy } from "passport-github2";
 import { Strategy as GoogleStrategy } from "passport-google-oauth20";
-import { Express } from "express";
+import { Express, type RequestHandler } from "express";
 import session from "express-session";
 import crypto, { scrypt, randomBytes, timingSafeEqual } from "crypto";
 import { promisify } from "util";
 import { storage } from "./storage";
 import { User as SelectUser, insertUserSchema } from "@shared/schema";
-import MongoStore from "connect-mongo";
 import CookieParser from "cookie-parser";
 import BodyParser from "body-parser";
 
@@ -64,34 +63,35 @@ async function comparePasswords(supplied: string, stored: string) {
   return timingSafeEqual(hashedBuf, suppliedBuf);
 }
 
-export function setupAuth(app: Express) {
+/**
+ * Cookie, session and passport middleware, for the pipeline profiles that
+ * serve browsers (see middleware/pipeline.ts). Machine-to-machine OAuth and
+ * discovery requests carry no session cookie and skip it, so they never
+ * create or save a session.
+ */
+export function sessionMiddleware(store: session.Store = storage.sessionStore): RequestHandler[] {
   const sessionSettings: session.SessionOptions = {
     secret: process.env.SESSION_SECRET ?? "dev-secret-key",
     resave: true,
     saveUninitialized: true,
-    store: MongoStore.create({
-      mongoUrl: process.env.MONGODB_URI,
-      collectionName: "sessions",
-      dbName: "oauth2-server",
-      ttl: 14 * 24 * 60 * 60,
-      autoRemove: "native",
-      crypto: {
-        secret: process.env.SESSION_SECRET ?? "dev-secret-key",
-      },
-      touchAfter: 24 * 3600,
-    }),
+    store,
     cookie: {
       maxAge: 14 * 24 * 60 * 60 * 1000, // 14 days in milliseconds
       secure: process.env.NODE_ENV === "production",
     },
   };
 
-  app.use(CookieParser());
+  return [
+    CookieParser(),
+    session(sessionSettings),
+    passport.initialize(),
+    passport.session()
+  ];
+}
+
+export function setupAuth(app: Express) {
   app.use(BodyParser.urlencoded({ extended: true }));
   app.set("trust proxy", 1);
-  app.use(session(sessionSettings));
-  app.use(passport.initialize());
-  app.use(passport.session());
 
   // Local Strategy
   passport.use(
@@ -169,7 +169,9 @@ export function setupAuth(app: Express) {
     }));
   }
 
+  // Runs once per login, whichever strategy authenticated the user
   passport.serializeUser((user, done) => {
+    storage.recordLogin((user as SelectUser)._id.toString()).catch(console.error);
     done(null, (user as SelectUser)._id);
   });
 
@@ -0,0 +1,142 @@
+/**
+ * Bounded LRU Cache with TTL
+ *
+ * Read-through cache used in front of MongoDB for small, hot record sets
+ * (clients, tenants). A lookup that found nothing can be cached as a negative
+ * entry (null) with its own, shorter TTL, so floods of unknown keys do not
+ * reach the database. Concurrent misses for the same key share one load.
+ *
+ * Map iteration order doubles as recency order: a hit re-inserts the entry at
+ * the end, and eviction removes from the front.
+ */
+
+interface CacheEntry<V> {
+  value: V | null;
+  expiresAt: number;
+}
+
+export interface LruCacheOptions {
+  maxEntries: number;
+  ttlMs: number;
+  negativeTtlMs?: number;
+}
+
+export class LruCache<K, V> {
+  private entries = new Map<K, CacheEntry<V>>();
+  private pending = new Map<K, Promise<V | null>>();
+  private stats = {
+    hits: 0,
+    negativeHits: 0,
+    misses: 0,
+    evictions: 0,
+    invalidations: 0
+  };
+
+  constructor(private options: LruCacheOptions) {}
+
+  /**
+   * Cached value, null for a cached negative lookup, undefined on a miss.
+   */
+  get(key: K): V | null | undefined {
+    const entry = this.entries.get(key);
+    if (!entry) {
+      return undefined;
+    }
+
+    if (entry.expiresAt <= Date.now()) {
+      this.entries.delete(key);
+      return undefined;
+    }
+
+    this.entries.delete(key);
+    this.entries.set(key, entry);
+    return entry.value;
+  }
+
+  set(key: K, value: V | null, ttlMs?: number) {
+    const ttl = ttlMs ?? (value === null ? this.options.negativeTtlMs ?? this.options.ttlMs : this.options.ttlMs);
+    this.entries.delete(key);
+    this.entries.set(key, { value, expiresAt: Date.now() + ttl });
+
+    while (this.entries.size > this.options.maxEntries) {
+      const oldest = this.entries.keys().next().value as K;
+      this.entries.delete(oldest);
+      this.stats.evictions++;
+    }
+  }
+
+  /**
+   * Read through the cache. A loader result of null or undefined is cached as
+   * a negative entry.
+   */
+  async getOrLoad(key: K, loader: () => Promise<V | null | undefined>): Promise<V | null> {
+    const cached = this.get(key);
+    if (cached !== undefined) {
+      if (cached === null) {
+        this.stats.negativeHits++;
+      } else {
+        this.stats.hits++;
+      }
+      return cached;
+    }
+
+    const inFlight = this.pending.get(key);
+    if (inFlight) {
+      return inFlight;
+    }
+
+    this.stats.misses++;
+    const load = loader()
+      .then(value => {
+        // Skip caching if the key was invalidated while the load was running
+        if (this.pending.get(key) === load) {
+          this.set(key, value ?? null);
+        }
+        return value ?? null;
+      })
+      .finally(() => {
+        if (this.pending.get(key) === load) {
+          this.pending.delete(key);
+        }
+      });
+    this.pending.set(key, load);
+    return load;
+  }
+
+  delete(key: K) {
+    this.stats.invalidations++;
+    this.entries.delete(key);
+    this.pending.delete(key);
+  }
+
+  /**
+   * Remove every entry whose value matches. Used when an invalidation only
+   * carries a secondary identifier (e.g. a document _id from a change stream).
+   */
+  deleteWhere(predicate: (value: V) => boolean) {
+    for (const [key, entry] of this.entries) {
+      if (entry.value !== null && predicate(entry.value)) {
+        this.delete(key);
+      }
+    }
+  }
+
+  clear() {
+    this.stats.invalidations += this.entries.size;
+    this.entries.clear();
+    this.pending.clear();
+  }
+
+  get size(): number {
+    return this.entries.size;
+  }
+
+  getStats() {
+    const lookups = this.stats.hits + this.stats.negativeHits + this.stats.misses;
+    return {
+      ...this.stats,
+      size: this.entries.size,
+      hitRatio: lookups > 0 ? (this.stats.hits + this.stats.negativeHits) / lookups : 0
+    };
+  }
+}
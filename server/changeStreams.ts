@@ -0,0 +1,41 @@
+/**
+ * Change Stream Helpers
+ *
+ * Lets the in-process caches hear about writes made by other nodes.
+ * Change streams require a replica set; on a standalone server the stream
+ * errors out shortly after opening, the watcher reports itself unavailable
+ * and the caller falls back to polling.
+ */
+
+import type { ChangeStreamDocument, ChangeStreamOptions, Document } from "mongodb";
+import { db } from "./db";
+
+export interface CollectionWatcher {
+  close(): Promise<void>;
+}
+
+export function watchCollection<T extends Document = Document>(
+  collectionName: string,
+  pipeline: Document[],
+  onChange: (change: ChangeStreamDocument<T>) => void,
+  onUnavailable: (error: Error) => void,
+  options: ChangeStreamOptions = {}
+): CollectionWatcher {
+  let closed = false;
+  const stream = db.collection<T>(collectionName).watch(pipeline, options);
+
+  stream.on("change", onChange);
+  stream.on("error", (error: Error) => {
+    if (closed) return;
+    closed = true;
+    stream.close().catch(() => {});
+    onUnavailable(error);
+  });
+
+  return {
+    async close() {
+      closed = true;
+      await stream.close();
+    }
+  };
+}
@@ -0,0 +1,52 @@
+/**
+ * Client Secret Hashing
+ *
+ * Client secrets are 32 random bytes generated by the server, so they need no
+ * slow key derivation: they are stored as an HMAC-SHA256 keyed with a
+ * server-side pepper (CLIENT_SECRET_PEPPER), and the plaintext is only
+ * returned when the secret is issued. Verification costs one HMAC and a
+ * constant-time compare, so failed attempts are as cheap as successful ones
+ * and nothing needs caching. Changing the pepper invalidates every stored
+ * secret.
+ */
+
+import crypto, { randomBytes, timingSafeEqual } from "crypto";
+import type { Client } from "@shared/schema";
+
+if (!process.env.CLIENT_SECRET_PEPPER && process.env.NODE_ENV === "production") {
+  throw new Error("CLIENT_SECRET_PEPPER must be set. Please provide a random string to key client secret hashes.");
+}
+
+const PEPPER = process.env.CLIENT_SECRET_PEPPER || "dev-client-secret-pepper";
+const HMAC_PREFIX = "hmac-sha256:";
+
+export function generateClientSecret(): string {
+  return randomBytes(32).toString('hex');
+}
+
+export function hashClientSecret(secret: string): string {
+  return HMAC_PREFIX + crypto.createHmac('sha256', PEPPER).update(secret).digest('hex');
+}
+
+function sha256(value: string): Buffer {
+  return crypto.createHash('sha256').update(value).digest();
+}
+
+/**
+ * Check a presented client secret against the stored client record.
+ */
+export async function verifyClientSecret(client: Client, presented: string | undefined): Promise<boolean> {
+  if (!presented) {
+    return false;
+  }
+
+  if (!client.clientSecretHash) {
+    // Record not yet migrated: compare digests so the lengths always match
+    return !!client.clientSecret && timingSafeEqual(sha256(client.clientSecret), sha256(presented));
+  }
+
+  // Both sides are fixed-length hex digests with the same prefix
+  const stored = Buffer.from(client.clientSecretHash);
+  const supplied = Buffer.from(hashClientSecret(presented));
+  return stored.length === supplied.length && timingSafeEqual(stored, supplied);
+}
@@ -1,6 +1,20 @@
-import { MongoClient } from 'mongodb';
+/**
+ * MongoDB Connection
+ *
+ * The one MongoClient the server uses: storage, services and the session
+ * store all share its connection pool. Pool size, wait-queue timeout,
+ * wire compression and read preference come from MONGODB_* settings; any
+ * setting left unset falls back to the connection string and then to the
+ * driver defaults.
+ *
+ * Pool (CMAP) and command monitoring events feed /metrics, so pools can be
+ * sized from checkout wait times and connections in use.
+ */
+
+import { MongoClient, type MongoClientOptions, type ReadPreferenceMode } from 'mongodb';
 import ws from "ws";
 import * as schema from "@shared/schema";
+import { metrics, type HistogramSeries } from "./metrics";
 
 import { neonConfig } from '@neondatabase/serverless'; //Keeping this for neonConfig
 
@@ -11,8 +25,100 @@ if (!process.env.MONGODB_URI) {
   throw new Error("MONGODB_URI must be set. Please provide your MongoDB connection string.");
 }
 
-export const client = new MongoClient(process.env.MONGODB_URI);
-export const db = client.db("oauth2-server");
+export const DB_NAME = "oauth2-server";
+
+function intSetting(name: string): number | undefined {
+  return process.env[name] ? parseInt(process.env[name]!, 10) : undefined;
+}
+
+function clientOptions(): MongoClientOptions {
+  const options: MongoClientOptions = {
+    // Command started/succeeded/failed events, for command latency metrics
+    monitorCommands: true
+  };
+
+  const maxPoolSize = intSetting('MONGODB_MAX_POOL_SIZE');
+  const minPoolSize = intSetting('MONGODB_MIN_POOL_SIZE');
+  const maxIdleTimeMS = intSetting('MONGODB_MAX_IDLE_TIME_MS');
+  const waitQueueTimeoutMS = intSetting('MONGODB_WAIT_QUEUE_TIMEOUT_MS');
+  if (maxPoolSize !== undefined) options.maxPoolSize = maxPoolSize;
+  if (minPoolSize !== undefined) options.minPoolSize = minPoolSize;
+  if (maxIdleTimeMS !== undefined) options.maxIdleTimeMS = maxIdleTimeMS;
+  if (waitQueueTimeoutMS !== undefined) options.waitQueueTimeoutMS = waitQueueTimeoutMS;
+
+  if (process.env.MONGODB_COMPRESSORS) {
+    // zlib is built in; snappy and zstd need their optional packages installed
+    options.compressors = process.env.MONGODB_COMPRESSORS
+      .split(',')
+      .map(name => name.trim())
+      .filter(Boolean) as MongoClientOptions['compressors'];
+  }
+  if (process.env.MONGODB_READ_PREFERENCE) {
+    // Applies to every read; secondaries can lag behind writes such as a revocation
+    options.readPreference = process.env.MONGODB_READ_PREFERENCE as ReadPreferenceMode;
+  }
+
+  return options;
+}
+
+export const client = new MongoClient(process.env.MONGODB_URI, clientOptions());
+export const db = client.db(DB_NAME);
+
+// Connection pool state, summed over every server the client is connected to
+const pool = { connections: 0, inUse: 0, waiting: 0 };
+
+const checkoutDuration = metrics.histogram(
+  'mongo_pool_checkout_duration_seconds',
+  'Time spent waiting for a pooled connection.',
+  ['outcome']
+);
+const checkoutSucceeded = checkoutDuration.labels('success');
+const checkoutFailed = checkoutDuration.labels('failed');
+
+metrics.collector('mongo_pool_connections', 'gauge', 'Pooled connections by state, and operations waiting for one.', ['state'], () => [
+  { labels: ['open'], value: pool.connections },
+  { labels: ['in_use'], value: pool.inUse },
+  { labels: ['waiting'], value: pool.waiting }
+]);
+
+const commandDuration = metrics.histogram(
+  'mongo_command_duration_seconds',
+  'Server round trip per command, from the driver\'s command monitoring.',
+  ['command', 'outcome']
+);
+
+// Series registered up front; anything else is recorded as "other"
+const MONITORED_COMMANDS = [
+  'find', 'getMore', 'insert', 'update', 'delete', 'findAndModify', 'aggregate',
+  'count', 'distinct', 'createIndexes', 'listIndexes', 'ping', 'killCursors', 'endSessions'
+];
+const commandSeries = new Map<string, { success: HistogramSeries; failure: HistogramSeries }>(
+  [...MONITORED_COMMANDS, 'other'].map(command => [command, {
+    success: commandDuration.labels(command, 'success'),
+    failure: commandDuration.labels(command, 'error')
+  }])
+);
+const otherCommand = commandSeries.get('other')!;
+
+client.on('connectionCreated', () => { pool.connections++; });
+client.on('connectionClosed', () => { pool.connections = Math.max(0, pool.connections - 1); });
+client.on('connectionCheckOutStarted', () => { pool.waiting++; });
+client.on('connectionCheckedOut', (event) => {
+  pool.waiting = Math.max(0, pool.waiting - 1);
+  pool.inUse++;
+  checkoutSucceeded.observe((event.durationMS ?? 0) / 1000);
+});
+client.on('connectionCheckOutFailed', (event) => {
+  pool.waiting = Math.max(0, pool.waiting - 1);
+  checkoutFailed.observe((event.durationMS ?? 0) / 1000);
+});
+client.on('connectionCheckedIn', () => { pool.inUse = Math.max(0, pool.inUse - 1); });
+client.on('commandSucceeded', (event) => {
+  (commandSeries.get(event.commandName) ?? otherCommand).success.observe(event.duration / 1000);
+});
+client.on('commandFailed', (event) => {
+  (commandSeries.get(event.commandName) ?? otherCommand).failure.observe(event.duration / 1000);
+});
 
 // Connect to MongoDB
 client.connect().catch(console.error);
@@ -23,4 +129,4 @@ process.on('SIGINT', () => {
     console.log('MongoDB connection closed.');
     process.exit(0);
   });
-});
\ No newline at end of file
+});
@@ -1,49 +1,28 @@
 import express, { type Request, Response, NextFunction } from "express";
 import { registerRoutes } from "./routes";
 import { setupVite, serveStatic, log } from "./vite";
-import { auditMiddleware } from "./middleware/audit";
-import { securityHeaders, enterpriseCors, securityMonitoring } from "./middleware/security";
-import { createRateLimitMiddleware, generalRateLimiter } from "./middleware/rateLimiter";
-import { healthCheck, readinessCheck, livenessCheck, healthMonitor } from "./middleware/health";
+import { captureRawBody } from "./middleware/threatScanner";
+import { requestMetrics } from "./metrics";
+import { healthMonitor } from "./middleware/health";
+import { runMigrations } from "./migrations";
+import { ensureIndexes } from "./indexes";
+import { storage } from "./storage";
+import { usageCounters } from "./usageCounters";
 
 const app = express();
-app.use(express.json());
-app.use(express.urlencoded({ extended: false }));
-
-app.use((req, res, next) => {
-  const start = Date.now();
-  const path = req.path;
-  let capturedJsonResponse: Record<string, any> | undefined = undefined;
-
-  const originalResJson = res.json;
-  res.json = function (bodyJson, ...args) {
-    capturedJsonResponse = bodyJson;
-    return originalResJson.apply(res, [bodyJson, ...args]);
-  };
-
-  res.on("finish", () => {
-    const duration = Date.now() - start;
-    if (path.startsWith("/api")) {
-      let logLine = `${req.method} ${path} ${res.statusCode} in ${duration}ms`;
-      if (capturedJsonResponse) {
-        logLine += ` :: ${JSON.stringify(capturedJsonResponse)}`;
-      }
-
-      if (logLine.length > 80) {
-        logLine = logLine.slice(0, 79) + "…";
-      }
-
-      log(logLine);
-    }
-  });
-
-  next();
-});
+app.use(requestMetrics);
+app.use(express.json({ verify: captureRawBody }));
+app.use(express.urlencoded({ extended: false, verify: captureRawBody }));
 
 (async () => {
   try {
     log("Starting server setup...");
+    await runMigrations();
+    await ensureIndexes().catch(error => log(`Index check failed: ${error.message}`));
+    await storage.warmTenantCache();
+    await usageCounters.start();
     const server = await registerRoutes(app);
+    healthMonitor.start();
 
     app.use((err: any, _req: Request, res: Response, _next: NextFunction) => {
       const status = err.status || err.statusCode || 500;
@@ -0,0 +1,195 @@
+/**
+ * Index Bootstrap
+ *
+ * The indexes the application relies on, declared next to the queries that
+ * need them. At startup every declared index is created if missing
+ * (INDEX_BOOTSTRAP=create, the default) or only checked (verify, for
+ * deployments where indexes are managed separately), and each known query is
+ * matched against the indexes that actually exist on the server. Queries no
+ * index can serve are reported, so a missing index shows up in the startup
+ * log instead of as a collection scan in production.
+ *
+ * Index creation problems are logged and never stop the server from starting.
+ */
+
+import type { CreateIndexesOptions, IndexDescription } from "mongodb";
+import { db } from "./db";
+
+const MODE = process.env.INDEX_BOOTSTRAP || "create";
+// The audit API only reads from MongoDB when audit events are written there
+const AUDIT_IN_MONGO = (process.env.AUDIT_SINK || "mongo") === "mongo";
+
+interface RequiredIndex {
+  collection: string;
+  key: Record<string, 1 | -1>;
+  options?: CreateIndexesOptions;
+}
+
+interface KnownQuery {
+  source: string; // IStorage method or service that issues the query
+  collection: string;
+  fields: string[]; // Fields the filter constrains; [] for a deliberate full read
+}
+
+export const requiredIndexes: RequiredIndex[] = [
+  // Usernames are unique per tenant; the username prefix also serves lookups without a tenant
+  { collection: 'users', key: { username: 1, tenantId: 1 }, options: { unique: true } },
+  { collection: 'users', key: { tenantId: 1 } },
+  { collection: 'users', key: { lastLogin: 1 }, options: { sparse: true } },
+
+  { collection: 'tenants', key: { domain: 1 }, options: { unique: true } },
+
+  { collection: 'clients', key: { clientId: 1 }, options: { unique: true } },
+  { collection: 'clients', key: { userId: 1 } },
+  { collection: 'clients', key: { tenantId: 1 } },
+
+  { collection: 'authCodes', key: { code: 1 }, options: { unique: true } },
+  { collection: 'authCodes', key: { clientId: 1 } },
+  { collection: 'authCodes', key: { expiresAt: 1 }, options: { expireAfterSeconds: 0 } },
+
+  { collection: 'tokens', key: { jti: 1 }, options: { unique: true, sparse: true } },
+  { collection: 'tokens', key: { refreshToken: 1 }, options: { unique: true, sparse: true } },
+  { collection: 'tokens', key: { clientId: 1 } },
+  { collection: 'tokens', key: { expiresAt: 1 }, options: { expireAfterSeconds: 0 } },
+
+  { collection: 'revokedTokens', key: { tokenId: 1, type: 1 } },
+  { collection: 'revokedTokens', key: { revokedAt: 1 } },
+  { collection: 'revokedTokens', key: { expiresAt: 1 }, options: { expireAfterSeconds: 0 } },
+
+  { collection: 'webauthn_credentials', key: { credentialID: 1 }, options: { unique: true } },
+  { collection: 'webauthn_credentials', key: { userId: 1 } },
+
+  { collection: 'jwtKeys', key: { isActive: 1, algorithm: 1 } },
+  { collection: 'jwtKeys', key: { status: 1, algorithm: 1 } },
+  { collection: 'jwtKeys', key: { verifyUntil: 1 } },
+
+  // The TTL index on timestamp is created by MongoAuditSink, which owns the retention setting
+  ...(AUDIT_IN_MONGO ? [
+    { collection: 'auditLogs', key: { tenantId: 1, timestamp: -1, _id: -1 } },
+    { collection: 'auditLogs', key: { userId: 1, timestamp: -1, _id: -1 } },
+    { collection: 'auditLogs', key: { clientId: 1, timestamp: -1, _id: -1 } },
+    { collection: 'auditLogs', key: { eventType: 1, timestamp: -1, _id: -1 } }
+  ] as RequiredIndex[] : [])
+];
+
+// Queries issued against MongoDB, by filter shape. $or filters are listed once per branch.
+export const knownQueries: KnownQuery[] = [
+  { source: 'getTenantByDomain', collection: 'tenants', fields: ['domain'] },
+  { source: 'listTenants / tenant cache reload', collection: 'tenants', fields: [] },
+  { source: 'getUserByUsername', collection: 'users', fields: ['username', 'tenantId'] },
+  { source: 'listUsersByTenant', collection: 'users', fields: ['tenantId'] },
+  { source: 'listUsers', collection: 'users', fields: [] },
+  { source: 'usage counter reconcile', collection: 'users', fields: ['lastLogin'] },
+  { source: 'getClientByClientId', collection: 'clients', fields: ['clientId'] },
+  { source: 'listClientsByUser / deleteUser', collection: 'clients', fields: ['userId'] },
+  { source: 'listClientsByTenant', collection: 'clients', fields: ['tenantId'] },
+  { source: 'listAllClients', collection: 'clients', fields: [] },
+  { source: 'getAuthCodeByCode / invalidateAuthCode', collection: 'authCodes', fields: ['code'] },
+  { source: 'deleteClient / deleteUser', collection: 'authCodes', fields: ['clientId'] },
+  { source: 'getTokenByJti / revokeAccessToken', collection: 'tokens', fields: ['jti'] },
+  { source: 'getTokenByRefreshToken(s) / revokeRefreshToken', collection: 'tokens', fields: ['refreshToken'] },
+  { source: 'deleteClient / deleteUser', collection: 'tokens', fields: ['clientId'] },
+  { source: 'usage counter reconcile', collection: 'tokens', fields: ['expiresAt'] },
+  { source: 'isAccessTokenRevoked / getRevokedAccessTokenIds', collection: 'revokedTokens', fields: ['tokenId', 'type'] },
+  { source: 'revocation list sync', collection: 'revokedTokens', fields: ['type', 'revokedAt', 'expiresAt'] },
+  { source: 'getWebAuthnCredentialsByUserId / deleteUser', collection: 'webauthn_credentials', fields: ['userId'] },
+  { source: 'getWebAuthnCredentialByCredentialId', collection: 'webauthn_credentials', fields: ['credentialID'] },
+  { source: 'JwtService active key', collection: 'jwtKeys', fields: ['isActive', 'algorithm'] },
+  { source: 'JwtService next key', collection: 'jwtKeys', fields: ['status', 'algorithm'] },
+  { source: 'verification keys ($or verifyUntil)', collection: 'jwtKeys', fields: ['verifyUntil'] },
+  ...(AUDIT_IN_MONGO ? [
+    { source: 'listAuditLogs by tenant', collection: 'auditLogs', fields: ['tenantId', 'timestamp'] },
+    { source: 'listAuditLogs by user', collection: 'auditLogs', fields: ['userId', 'timestamp'] },
+    { source: 'listAuditLogs by client', collection: 'auditLogs', fields: ['clientId', 'timestamp'] },
+    { source: 'listAuditLogs by event type', collection: 'auditLogs', fields: ['eventType', 'timestamp'] },
+    { source: 'listAuditLogs unfiltered', collection: 'auditLogs', fields: ['timestamp'] }
+  ] : [])
+];
+
+function sameKey(a: Record<string, unknown>, b: Record<string, unknown>): boolean {
+  return JSON.stringify(a) === JSON.stringify(b);
+}
+
+async function existingIndexes(collection: string): Promise<IndexDescription[]> {
+  try {
+    return await db.collection(collection).listIndexes().toArray() as IndexDescription[];
+  } catch (error: any) {
+    if (error?.code === 26) return []; // NamespaceNotFound: collection not created yet
+    throw error;
+  }
+}
+
+/**
+ * A query can use an index whose leading field it constrains.
+ */
+function isCovered(query: KnownQuery, indexes: IndexDescription[]): boolean {
+  return indexes.some(index => {
+    const leading = Object.keys(index.key)[0];
+    return leading !== undefined && query.fields.includes(leading);
+  });
+}
+
+export async function ensureIndexes() {
+  if (MODE === 'off') return;
+
+  const collections = Array.from(new Set([
+    ...requiredIndexes.map(index => index.collection),
+    ...knownQueries.map(query => query.collection)
+  ]));
+
+  let created = 0;
+  const failed: string[] = [];
+  const missing: string[] = [];
+
+  for (const collection of collections) {
+    const existing = await existingIndexes(collection).catch(() => []);
+
+    for (const required of requiredIndexes.filter(index => index.collection === collection)) {
+      if (existing.some(index => sameKey(index.key as Record<string, unknown>, required.key))) {
+        continue;
+      }
+      const description = `${collection} ${JSON.stringify(required.key)}`;
+      if (MODE !== 'create') {
+        missing.push(description);
+        continue;
+      }
+      try {
+        await db.collection(collection).createIndex(required.key, required.options);
+        created++;
+      } catch (error) {
+        // e.g. duplicates violating a new unique index, or an index with the same name and other options
+        failed.push(`${description}: ${(error as Error).message}`);
+      }
+    }
+  }
+
+  const uncovered: string[] = [];
+  const scans: string[] = [];
+  for (const collection of collections) {
+    const indexes = await existingIndexes(collection).catch(() => []);
+    for (const query of knownQueries.filter(known => known.collection === collection)) {
+      if (query.fields.length === 0) {
+        scans.push(`${query.source} on ${collection}`);
+      } else if (!isCovered(query, indexes)) {
+        uncovered.push(`${query.source} on ${collection} (${query.fields.join(', ')})`);
+      }
+    }
+  }
+
+  console.log(
+    `Index check: ${requiredIndexes.length} required, ${created} created, ` +
+    `${failed.length + missing.length} missing, ${uncovered.length} uncovered queries`
+  );
+  for (const description of missing) {
+    console.warn(`Missing index: ${description}`);
+  }
+  for (const description of failed) {
+    console.warn(`Could not create index: ${description}`);
+  }
+  for (const description of uncovered) {
+    console.warn(`Query not covered by an index: ${description}`);
+  }
+  if (scans.length > 0) {
+    console.log(`Full collection reads (by design): ${scans.join('; ')}`);
+  }
+}
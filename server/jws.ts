@@ -0,0 +1,100 @@
+/**
+ * Compact JWS for EdDSA
+ *
+ * jsonwebtoken has no EdDSA (Ed25519) support, so tokens signed with Ed25519
+ * keys are produced and checked here with node's crypto directly. Claims are
+ * handled the way jsonwebtoken handles them (iat/exp from expiresIn, exp and
+ * nbf checked on verify), and failures throw jsonwebtoken's own error types so
+ * callers cannot tell the two paths apart.
+ */
+
+import crypto, { KeyObject } from "crypto";
+import jwt, { JwtPayload } from "jsonwebtoken";
+
+const DURATION_UNITS: Record<string, number> = {
+  ms: 0.001,
+  s: 1,
+  m: 60,
+  h: 60 * 60,
+  d: 24 * 60 * 60,
+  w: 7 * 24 * 60 * 60,
+  y: 365.25 * 24 * 60 * 60
+};
+
+/**
+ * Parse a jsonwebtoken-style expiresIn ("1h", "7d", or seconds) into seconds.
+ */
+export function parseExpiresIn(expiresIn: string | number): number {
+  if (typeof expiresIn === 'number') {
+    return expiresIn;
+  }
+
+  const match = /^(\d+(?:\.\d+)?)\s*(ms|s|m|h|d|w|y)?$/i.exec(expiresIn.trim());
+  if (!match) {
+    throw new Error(`Invalid expiresIn value: ${expiresIn}`);
+  }
+  return Math.floor(parseFloat(match[1]) * DURATION_UNITS[(match[2] || 's').toLowerCase()]);
+}
+
+/**
+ * Fill in iat and exp the way jwt.sign does.
+ */
+export function buildClaims(payload: object, expiresIn: string | number): Record<string, unknown> {
+  const claims: Record<string, unknown> = { ...payload };
+  const iat = typeof claims.iat === 'number' ? claims.iat : Math.floor(Date.now() / 1000);
+  claims.iat = iat;
+  claims.exp = iat + parseExpiresIn(expiresIn);
+  return claims;
+}
+
+export function encodeSegment(value: object): string {
+  return Buffer.from(JSON.stringify(value)).toString('base64url');
+}
+
+export function signEdDSA(payload: object, privateKey: KeyObject, options: { keyid: string; expiresIn: string | number }): string {
+  const header = encodeSegment({ alg: 'EdDSA', typ: 'JWT', kid: options.keyid });
+  const body = encodeSegment(buildClaims(payload, options.expiresIn));
+  const signingInput = `${header}.${body}`;
+  const signature = crypto.sign(null, Buffer.from(signingInput), privateKey);
+  return `${signingInput}.${signature.toString('base64url')}`;
+}
+
+export function verifyEdDSA(token: string, publicKey: KeyObject): JwtPayload {
+  const parts = token.split('.');
+  if (parts.length !== 3) {
+    throw new jwt.JsonWebTokenError('jwt malformed');
+  }
+
+  let header: { alg?: string };
+  let payload: JwtPayload;
+  try {
+    header = JSON.parse(Buffer.from(parts[0], 'base64url').toString());
+    payload = JSON.parse(Buffer.from(parts[1], 'base64url').toString());
+  } catch (error) {
+    throw new jwt.JsonWebTokenError('invalid token');
+  }
+
+  if (header.alg !== 'EdDSA') {
+    throw new jwt.JsonWebTokenError('invalid algorithm');
+  }
+
+  const valid = crypto.verify(
+    null,
+    Buffer.from(`${parts[0]}.${parts[1]}`),
+    publicKey,
+    Buffer.from(parts[2], 'base64url')
+  );
+  if (!valid) {
+    throw new jwt.JsonWebTokenError('invalid signature');
+  }
+
+  const now = Math.floor(Date.now() / 1000);
+  if (typeof payload.nbf === 'number' && now < payload.nbf) {
+    throw new jwt.NotBeforeError('jwt not active', new Date(payload.nbf * 1000));
+  }
+  if (typeof payload.exp === 'number' && now >= payload.exp) {
+    throw new jwt.TokenExpiredError('jwt expired', new Date(payload.exp * 1000));
+  }
+
+  return payload;
+}
@@ -1,152 +1,358 @@
 import jwt, { Secret, JwtPayload } from 'jsonwebtoken';
 import crypto from 'crypto';
+import { promisify } from 'util';
+import { ObjectId } from 'mongodb';
 import { db } from './db';
-import { storage } from './storage';
+import { acquireLease, releaseLease } from './locks';
+import { JwtKeyCache } from './keyCache';
+import type { CachedKey, JwksDocument } from './keyCache';
+import { buildClaims, signEdDSA, verifyEdDSA } from './jws';
+import { signingPool } from './signingPool';
+import { revocationList } from './revocation';
+import { accessTokenId, generateJti } from './tokenIds';
 import type { JwtKeys } from '@shared/schema';
+import { performance } from 'perf_hooks';
+import { jwtOperationDuration, type HistogramSeries } from './metrics';
+
+const generateKeyPairAsync = promisify(crypto.generateKeyPair);
+
+export const SIGNING_ALGORITHMS = ['RS256', 'ES256', 'EdDSA'] as const;
+export type SigningAlgorithm = typeof SIGNING_ALGORITHMS[number];
+
+function parseAlgorithm(value: string | undefined): SigningAlgorithm | undefined {
+  return SIGNING_ALGORITHMS.find(algorithm => algorithm === value);
+}
+
+// Algorithm used when neither the caller nor the tenant asks for one
+const DEFAULT_ALGORITHM: SigningAlgorithm = parseAlgorithm(process.env.JWT_SIGNING_ALG) ?? 'RS256';
+// Algorithms kept with an active key; tenants may choose any of these
+const ENABLED_ALGORITHMS: SigningAlgorithm[] = Array.from(new Set([
+  DEFAULT_ALGORITHM,
+  ...(process.env.JWT_SIGNING_ALGS || '')
+    .split(',')
+    .map(value => parseAlgorithm(value.trim()))
+    .filter((algorithm): algorithm is SigningAlgorithm => algorithm !== undefined)
+]));
+
+function seriesByAlgorithm(operation: 'sign' | 'verify'): Record<SigningAlgorithm, HistogramSeries> {
+  return Object.fromEntries(
+    SIGNING_ALGORITHMS.map(algorithm => [algorithm, jwtOperationDuration.labels(operation, algorithm)])
+  ) as Record<SigningAlgorithm, HistogramSeries>;
+}
+
+// Latency series, registered up front so recording does not allocate
+const signDuration = seriesByAlgorithm('sign');
+const verifyDuration = seriesByAlgorithm('verify');
+
+const DAY_MS = 24 * 60 * 60 * 1000;
+// How long a retired key is still accepted for verification and published in the JWKS
+const KEY_VERIFY_GRACE_MS = parseInt(process.env.JWT_KEY_VERIFY_GRACE_MS || String(7 * DAY_MS), 10);
+// How long a key signs tokens before it is replaced; 0 disables scheduled rotation
+const KEY_ROTATION_INTERVAL_MS = parseInt(process.env.JWT_KEY_ROTATION_INTERVAL_MS || String(90 * DAY_MS), 10);
+// How long the next key is published in the JWKS before it starts signing
+const KEY_PREPUBLISH_MS = parseInt(process.env.JWT_KEY_PREPUBLISH_MS || String(2 * DAY_MS), 10);
+const KEY_ROTATION_CHECK_MS = parseInt(process.env.JWT_KEY_ROTATION_CHECK_MS || String(60 * 60 * 1000), 10);
+
+const ROTATION_LEASE = 'jwt-key-rotation';
+const ROTATION_LEASE_TTL_MS = 60 * 1000;
+const INITIAL_KEY_WAIT_MS = 30 * 1000;
 
 class JwtService {
-  private currentKeys: JwtKeys | null = null;
+  private keyCache = new JwtKeyCache();
+  private rotationTimer: NodeJS.Timeout | null = null;
 
   async initialize() {
-    const keys = await this.getActiveKeys();
-    if (!keys) {
-      await this.generateNewKeyPair();
+    this.keyCache.start();
+    for (const algorithm of ENABLED_ALGORITHMS) {
+      await this.ensureActiveKey(algorithm);
     }
+    this.startRotation();
+    await revocationList.start();
+  }
+
+  /**
+   * Algorithms tokens can be signed with, for discovery metadata.
+   */
+  getSupportedAlgorithms(): SigningAlgorithm[] {
+    return [...ENABLED_ALGORITHMS];
+  }
+
+  /**
+   * Pick the signing algorithm for a request: the requested one if it is
+   * enabled, otherwise the server default.
+   */
+  resolveAlgorithm(requested?: string): SigningAlgorithm {
+    const algorithm = parseAlgorithm(requested);
+    return algorithm && ENABLED_ALGORITHMS.includes(algorithm) ? algorithm : DEFAULT_ALGORITHM;
   }
 
-  private async getActiveKeys(): Promise<JwtKeys | null> {
-    const keys = await db.collection('jwtKeys').findOne({ isActive: true });
-    if (keys) {
-      this.currentKeys = keys as JwtKeys;
+  /**
+   * On first start there is no key at all. One node generates it while the
+   * others wait for it to appear.
+   */
+  private async ensureActiveKey(algorithm: SigningAlgorithm) {
+    const deadline = Date.now() + INITIAL_KEY_WAIT_MS;
+    while (!(await this.keyCache.getActiveKey(algorithm))) {
+      if (await acquireLease(ROTATION_LEASE, ROTATION_LEASE_TTL_MS)) {
+        try {
+          if (!(await db.collection('jwtKeys').findOne({ isActive: true, algorithm }))) {
+            await this.generateNewKeyPair(algorithm);
+          }
+          await this.keyCache.refresh();
+        } finally {
+          await releaseLease(ROTATION_LEASE);
+        }
+      } else if (Date.now() > deadline) {
+        throw new Error(`Timed out waiting for another node to create the ${algorithm} signing key`);
+      } else {
+        await new Promise(resolve => setTimeout(resolve, 1000));
+        await this.keyCache.refresh();
+      }
     }
-    return this.currentKeys;
+  }
+
+  private startRotation() {
+    if (KEY_ROTATION_INTERVAL_MS <= 0 || this.rotationTimer) return;
+
+    const check = () => {
+      this.checkRotation().catch(error => console.error('JWT key rotation failed:', error));
+    };
+    check();
+    this.rotationTimer = setInterval(check, KEY_ROTATION_CHECK_MS);
+    this.rotationTimer.unref();
+  }
+
+  /**
+   * Key lifecycle: next (published in the JWKS, not yet signing) -> active ->
+   * retired (verification only, until verifyUntil). Each algorithm rotates
+   * independently.
+   */
+  private async checkRotation() {
+    if (!(await acquireLease(ROTATION_LEASE, ROTATION_LEASE_TTL_MS))) return;
+
+    try {
+      const keys = db.collection('jwtKeys');
+      for (const algorithm of ENABLED_ALGORITHMS) {
+        const active = await keys.findOne({ isActive: true, algorithm }, { sort: { createdAt: -1 } }) as JwtKeys | null;
+        if (!active) continue;
+
+        const now = Date.now();
+        const rotateAt = new Date(active.activatedAt ?? active.createdAt).getTime() + KEY_ROTATION_INTERVAL_MS;
+        const next = await keys.findOne({ status: 'next', algorithm }) as JwtKeys | null;
+
+        if (!next && now >= rotateAt - KEY_PREPUBLISH_MS) {
+          // Give JWKS caches the full pre-publication window even if rotation is overdue
+          await this.publishNextKey(algorithm, new Date(Math.max(rotateAt, now + KEY_PREPUBLISH_MS)));
+        } else if (next && next.activatesAt && now >= new Date(next.activatesAt).getTime()) {
+          await this.promoteKey(next._id, algorithm);
+        }
+      }
+    } finally {
+      await releaseLease(ROTATION_LEASE);
+    }
+  }
+
+  private async getActiveKeys(algorithm: SigningAlgorithm = DEFAULT_ALGORITHM) {
+    return this.keyCache.getActiveKey(algorithm);
+  }
+
+  /**
+   * Whether tokens can be signed with the default algorithm right now.
+   */
+  async hasActiveKey(): Promise<boolean> {
+    return (await this.getActiveKeys()) !== null;
+  }
+
+  getKeyCacheStats() {
+    return this.keyCache.getStats();
+  }
+
+  getSigningPoolStats() {
+    return signingPool.getStats();
   }
 
   async getPublicKey(): Promise<string | null> {
     const keys = await this.getActiveKeys();
-    return keys?.publicKey || null;
+    return keys?.record.publicKey || null;
   }
 
   async getJWKS() {
-    const keys = await this.getActiveKeys();
-    if (!keys) {
+    const jwks = await this.keyCache.getJwks();
+    if (!jwks) {
       throw new Error('No active keys found');
     }
+    return JSON.parse(jwks.body.toString());
+  }
 
-    // Convert PEM public key to JWK format
-    const key = crypto.createPublicKey(keys.publicKey);
-    const keyData = key.export({ format: 'jwk' });
-
-    return {
-      ...keyData,
-      kid: this.generateKeyId(keys.publicKey),
-      use: 'sig',
-      alg: 'RS256',
-    };
+  /**
+   * The JWKS document for the current key set, pre-serialized with its ETag.
+   */
+  async getJWKSDocument(): Promise<JwksDocument | null> {
+    return this.keyCache.getJwks();
   }
 
-  private generateKeyId(publicKey: string): string {
-    return crypto.createHash('sha256')
-      .update(publicKey)
-      .digest('hex')
-      .slice(0, 16);
+  private async createKeyPair(algorithm: SigningAlgorithm) {
+    const encoding = {
+      publicKeyEncoding: { type: 'spki', format: 'pem' },
+      privateKeyEncoding: { type: 'pkcs8', format: 'pem' }
+    } as const;
+
+    // Generated off the event loop; RSA key generation can take hundreds of milliseconds
+    switch (algorithm) {
+      case 'ES256':
+        return generateKeyPairAsync('ec', { namedCurve: 'P-256', ...encoding });
+      case 'EdDSA':
+        return generateKeyPairAsync('ed25519', encoding);
+      default:
+        return generateKeyPairAsync('rsa', { modulusLength: 2048, ...encoding });
+    }
   }
 
-  private async generateNewKeyPair() {
-    const { privateKey, publicKey } = crypto.generateKeyPairSync('rsa', {
-      modulusLength: 2048,
-      publicKeyEncoding: {
-        type: 'spki',
-        format: 'pem'
-      },
-      privateKeyEncoding: {
-        type: 'pkcs8',
-        format: 'pem'
-      }
+  /**
+   * Generate a key and make it active immediately. Regular rotation goes
+   * through publishNextKey/promoteKey instead.
+   */
+  private async generateNewKeyPair(algorithm: SigningAlgorithm) {
+    const { privateKey, publicKey } = await this.createKeyPair(algorithm);
+    const now = new Date();
+
+    const result = await db.collection('jwtKeys').insertOne({
+      privateKey,
+      publicKey,
+      algorithm,
+      createdAt: now,
+      activatedAt: now,
+      isActive: true,
+      status: 'active'
     });
+    await this.retireKeysExcept(result.insertedId, algorithm);
+    await this.keyCache.refresh();
+  }
 
-    await db.collection('jwtKeys').updateMany(
-      { isActive: true },
-      { $set: { isActive: false } }
-    );
+  private async publishNextKey(algorithm: SigningAlgorithm, activatesAt: Date) {
+    const { privateKey, publicKey } = await this.createKeyPair(algorithm);
 
-    const newKeys = {
+    await db.collection('jwtKeys').insertOne({
       privateKey,
       publicKey,
-      algorithm: 'RS256',
+      algorithm,
       createdAt: new Date(),
-      isActive: true
-    };
+      isActive: false,
+      status: 'next',
+      activatesAt
+    });
+    await this.keyCache.refresh();
+    console.log(`Published next ${algorithm} signing key, active from ${activatesAt.toISOString()}`);
+  }
 
-    const result = await db.collection('jwtKeys').insertOne(newKeys);
-    this.currentKeys = { ...newKeys, _id: result.insertedId };
+  private async promoteKey(keyId: ObjectId, algorithm: SigningAlgorithm) {
+    // Activate the new key before retiring the old one so there is never a gap
+    const promoted = await db.collection('jwtKeys').findOneAndUpdate(
+      { _id: keyId, status: 'next' },
+      { $set: { isActive: true, status: 'active', activatedAt: new Date() } }
+    );
+    if (!promoted) return;
+
+    await this.retireKeysExcept(keyId, algorithm);
+    await this.keyCache.refresh();
+    console.log(`Rotated ${algorithm} signing key`);
   }
 
-  async generateAccessToken(payload: object, expiresIn: string = '1h'): Promise<string> {
-    const keys = await this.getActiveKeys();
+  private async retireKeysExcept(keyId: ObjectId, algorithm: SigningAlgorithm) {
+    // Retired keys stay in the JWKS until tokens signed with them have expired
+    await db.collection('jwtKeys').updateMany(
+      { isActive: true, algorithm, _id: { $ne: keyId } },
+      {
+        $set: {
+          isActive: false,
+          status: 'retired',
+          verifyUntil: new Date(Date.now() + KEY_VERIFY_GRACE_MS)
+        }
+      }
+    );
+  }
+
+  private async sign(payload: object, keys: CachedKey, expiresIn: string): Promise<string> {
+    const start = performance.now();
+    try {
+      // With a signing pool configured, the private-key operation runs off the main thread
+      if (signingPool.enabled) {
+        return await signingPool.sign(keys, buildClaims(payload, expiresIn));
+      }
+
+      if (keys.algorithm === 'EdDSA') {
+        return signEdDSA(payload, keys.privateKey, { keyid: keys.kid, expiresIn });
+      }
+
+      // Work around TypeScript limitation by using any
+      // This is safe because we know the structure matches what jsonwebtoken expects
+      return jwt.sign(
+        payload,
+        keys.privateKey as any,
+        {
+          algorithm: keys.algorithm as any,
+          expiresIn: expiresIn as any,
+          keyid: keys.kid
+        }
+      );
+    } finally {
+      signDuration[keys.algorithm as SigningAlgorithm]?.observeSince(start);
+    }
+  }
+
+  async generateAccessToken(payload: object, expiresIn: string = '1h', algorithm?: SigningAlgorithm): Promise<string> {
+    const keys = await this.getActiveKeys(algorithm);
     if (!keys) {
       throw new Error('No active JWT keys found');
     }
 
-    // Work around TypeScript limitation by using any
-    // This is safe because we know the structure matches what jsonwebtoken expects
-    return jwt.sign(
-      payload, 
-      keys.privateKey as any, 
-      { 
-        algorithm: 'RS256' as any,
-        expiresIn: expiresIn as any,
-        keyid: this.generateKeyId(keys.publicKey)
-      }
-    );
+    // Tokens are stored and revoked by jti, so every access token carries one
+    if (!('jti' in payload)) {
+      payload = { ...payload, jti: generateJti() };
+    }
+
+    return this.sign(payload, keys, expiresIn);
   }
 
-  async generateRefreshToken(payload: any, expiresIn: string = '7d'): Promise<string> {
-    const keys = await this.getActiveKeys();
+  async generateRefreshToken(payload: any, expiresIn: string = '7d', algorithm?: SigningAlgorithm): Promise<string> {
+    const keys = await this.getActiveKeys(algorithm);
     if (!keys) {
       throw new Error('No active JWT keys found');
     }
 
-    // Work around TypeScript limitation by using any
-    // This is safe because we know the structure matches what jsonwebtoken expects
-    return jwt.sign(
-      payload, 
-      keys.privateKey as any, 
-      { 
-        algorithm: 'RS256' as any,
-        expiresIn: expiresIn as any
-      }
-    );
+    return this.sign(payload, keys, expiresIn);
   }
 
   async verifyToken(token: string): Promise<any> {
-    const keys = await this.getActiveKeys();
+    // Tokens signed before a rotation are verified with the key named by their kid
+    const decoded = jwt.decode(token, { complete: true });
+    const kid = decoded?.header.kid;
+    const keys = kid
+      ? await this.keyCache.getVerificationKey(kid)
+      : await this.getActiveKeys();
     if (!keys) {
-      throw new Error('No active JWT keys found');
+      throw new Error(kid ? 'Unknown signing key' : 'No active JWT keys found');
     }
 
     try {
-      // First, check if token is in the revocation list
-      const revokedToken = await db.collection('revokedTokens').findOne({ 
-        token, 
-        type: 'access_token' 
-      });
-      
-      if (revokedToken) {
-        throw new Error('Token has been revoked');
+      // Verify token signature and expiration with the algorithm bound to the key
+      const start = performance.now();
+      let payload: JwtPayload;
+      try {
+        payload = keys.algorithm === 'EdDSA'
+          ? verifyEdDSA(token, keys.publicKey)
+          : jwt.verify(token, keys.publicKey as any, {
+              algorithms: [keys.algorithm as any]
+            }) as JwtPayload;
+      } finally {
+        verifyDuration[keys.algorithm as SigningAlgorithm]?.observeSince(start);
       }
-      
-      // Verify token signature and expiration
-      const payload = jwt.verify(token, keys.publicKey, {
-        algorithms: ['RS256']
-      });
-      
-      // For additional verification, check if token exists in database and is not revoked
-      const tokenRecord = await storage.getTokenByAccessToken(token);
-      if (tokenRecord && tokenRecord.revoked) {
+
+      // Revocations are mirrored in memory, so this is normally answered without I/O
+      if (await revocationList.isRevoked(accessTokenId(token, payload))) {
         throw new Error('Token has been revoked');
       }
-      
+
       return payload;
     } catch (error) {
       if (error instanceof Error) {
@@ -159,4 +365,4 @@ class JwtService {
 
 export const jwtService = new JwtService();
 // Initialize the JWT service when the server starts
-jwtService.initialize().catch(console.error);
\ No newline at end of file
+jwtService.initialize().catch(console.error);
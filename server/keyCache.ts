@@ -0,0 +1,316 @@
+/**
+ * JWT Signing Key Cache
+ *
+ * Keeps the signing key set in memory with its PEM material already parsed
+ * into KeyObjects, so issuing or verifying a token does not cost a MongoDB
+ * round trip. The set holds the active signing key per algorithm, the next
+ * keys published ahead of activation, and any previous keys still inside
+ * their verification grace period (verifyUntil); the JWKS document for that
+ * set is serialized once per key-set version.
+ *
+ * The cache is refreshed when a key rotation is published: through a change
+ * stream on the jwtKeys collection when the deployment supports it, otherwise
+ * by polling the key-set version.
+ */
+
+import crypto, { KeyObject } from "crypto";
+import { db } from "./db";
+import { watchCollection, CollectionWatcher } from "./changeStreams";
+import type { JwtKeys } from "@shared/schema";
+
+const POLL_INTERVAL_MS = parseInt(process.env.JWT_KEY_POLL_INTERVAL_MS || "30000", 10);
+// An unknown kid triggers at most one reload per interval
+const UNKNOWN_KID_RELOAD_INTERVAL_MS = 10 * 1000;
+
+export interface CachedKey {
+  kid: string;
+  algorithm: string;
+  record: JwtKeys;
+  privateKey: KeyObject;
+  publicKey: KeyObject;
+}
+
+export interface JwksDocument {
+  body: Buffer;
+  etag: string;
+}
+
+interface KeySet {
+  version: string;
+  active: Map<string, CachedKey>; // algorithm -> key currently signing with it
+  keys: Map<string, CachedKey>; // kid -> key, everything still valid for verification
+  jwks: JwksDocument;
+}
+
+export function generateKeyId(publicKey: string): string {
+  return crypto.createHash('sha256')
+    .update(publicKey)
+    .digest('hex')
+    .slice(0, 16);
+}
+
+export function toCachedKey(record: JwtKeys): CachedKey {
+  return {
+    kid: generateKeyId(record.publicKey),
+    algorithm: record.algorithm,
+    record,
+    privateKey: crypto.createPrivateKey(record.privateKey),
+    publicKey: crypto.createPublicKey(record.publicKey)
+  };
+}
+
+function keySetVersion(records: { _id: unknown; isActive?: boolean; status?: string }[]): string {
+  const members = records.map(record => `${String(record._id)}:${record.isActive ? 'active' : record.status ?? 'retired'}`);
+  return crypto.createHash('sha256')
+    .update(members.sort().join(','))
+    .digest('hex')
+    .slice(0, 16);
+}
+
+function verificationKeysQuery() {
+  return {
+    $or: [
+      { isActive: true },
+      { status: 'next' },
+      { verifyUntil: { $gt: new Date() } }
+    ]
+  };
+}
+
+function buildJwks(keys: CachedKey[]): JwksDocument {
+  const body = Buffer.from(JSON.stringify({
+    keys: keys.map(key => ({
+      ...key.publicKey.export({ format: 'jwk' }),
+      kid: key.kid,
+      use: 'sig',
+      alg: key.algorithm
+    }))
+  }));
+  const digest = crypto.createHash('sha256').update(body).digest('base64url');
+
+  return { body, etag: `"${digest}"` };
+}
+
+export class JwtKeyCache {
+  private keySet: KeySet | null = null;
+  private loading: Promise<KeySet | null> | null = null;
+  private watcher: CollectionWatcher | null = null;
+  private pollTimer: NodeJS.Timeout | null = null;
+  private expiryTimer: NodeJS.Timeout | null = null;
+  private lastUnknownKidReload = 0;
+  private stats = {
+    hits: 0,
+    misses: 0,
+    reloads: 0,
+    invalidations: 0,
+    jwksBuilds: 0
+  };
+
+  async getActiveKey(algorithm: string): Promise<CachedKey | null> {
+    const keySet = await this.getKeySet();
+    return keySet?.active.get(algorithm) ?? null;
+  }
+
+  /**
+   * Algorithms that currently have an active signing key.
+   */
+  getActiveAlgorithms(): string[] {
+    return this.keySet ? [...this.keySet.active.keys()] : [];
+  }
+
+  /**
+   * Look up a verification key by kid. A kid this node has not seen may belong
+   * to a key another node just published, so it triggers a (throttled) reload.
+   */
+  async getVerificationKey(kid: string): Promise<CachedKey | null> {
+    const keySet = await this.getKeySet();
+    const key = keySet?.keys.get(kid);
+    if (key) return key;
+
+    const now = Date.now();
+    if (now - this.lastUnknownKidReload < UNKNOWN_KID_RELOAD_INTERVAL_MS) {
+      return null;
+    }
+    this.lastUnknownKidReload = now;
+    await this.reload();
+    return this.keySet?.keys.get(kid) ?? null;
+  }
+
+  async getJwks(): Promise<JwksDocument | null> {
+    const keySet = await this.getKeySet();
+    return keySet?.jwks ?? null;
+  }
+
+  /**
+   * Make sure a key this node has just written is served immediately, without
+   * waiting for the change notification.
+   */
+  async refresh() {
+    if (this.loading) {
+      await this.loading.catch(() => {});
+    }
+    await this.reload();
+  }
+
+  invalidate() {
+    this.stats.invalidations++;
+    this.keySet = null;
+  }
+
+  /**
+   * Start listening for key rotations. Falls back to polling when change
+   * streams are not available (standalone MongoDB).
+   */
+  start() {
+    if (this.watcher || this.pollTimer) return;
+
+    this.watcher = watchCollection(
+      'jwtKeys',
+      [],
+      () => {
+        this.reload().catch(console.error);
+      },
+      (error) => {
+        console.warn(`jwtKeys change stream unavailable (${error.message}), polling every ${POLL_INTERVAL_MS}ms`);
+        this.watcher = null;
+        this.startPolling();
+      }
+    );
+  }
+
+  async stop() {
+    if (this.pollTimer) {
+      clearInterval(this.pollTimer);
+      this.pollTimer = null;
+    }
+    if (this.expiryTimer) {
+      clearTimeout(this.expiryTimer);
+      this.expiryTimer = null;
+    }
+    if (this.watcher) {
+      await this.watcher.close();
+      this.watcher = null;
+    }
+  }
+
+  getStats() {
+    const lookups = this.stats.hits + this.stats.misses;
+    return {
+      ...this.stats,
+      hitRatio: lookups > 0 ? this.stats.hits / lookups : 0,
+      version: this.keySet?.version ?? null,
+      keys: this.keySet?.keys.size ?? 0
+    };
+  }
+
+  private async getKeySet(): Promise<KeySet | null> {
+    if (this.keySet) {
+      this.stats.hits++;
+      return this.keySet;
+    }
+
+    this.stats.misses++;
+    return this.load();
+  }
+
+  private startPolling() {
+    this.pollTimer = setInterval(() => {
+      this.checkVersion().catch(console.error);
+    }, POLL_INTERVAL_MS);
+    this.pollTimer.unref();
+  }
+
+  private async checkVersion() {
+    const docs = await db.collection('jwtKeys')
+      .find(verificationKeysQuery(), { projection: { _id: 1, isActive: 1, status: 1 } })
+      .toArray();
+    const version = keySetVersion(docs);
+    if (version !== this.keySet?.version) {
+      await this.reload();
+    }
+  }
+
+  /**
+   * Reload in the background while the current key set keeps serving.
+   */
+  private async reload() {
+    this.stats.reloads++;
+    await this.load();
+  }
+
+  private load(): Promise<KeySet | null> {
+    if (!this.loading) {
+      this.loading = this.fetchKeySet().finally(() => {
+        this.loading = null;
+      });
+    }
+    return this.loading;
+  }
+
+  private async fetchKeySet(): Promise<KeySet | null> {
+    const records = await db.collection('jwtKeys')
+      .find(verificationKeysQuery())
+      .sort({ createdAt: -1 })
+      .toArray() as JwtKeys[];
+
+    // Mid-rotation there is briefly no active key; keep serving the last one
+    if (!records.some(record => record.isActive) && this.keySet?.active.size) {
+      return this.keySet;
+    }
+    if (records.length === 0) {
+      return this.keySet;
+    }
+
+    const version = keySetVersion(records);
+    if (this.keySet?.version === version) {
+      return this.keySet;
+    }
+
+    // Reuse already-parsed keys; only new key material is imported
+    const keys = new Map<string, CachedKey>();
+    const active = new Map<string, CachedKey>();
+    for (const record of records) {
+      const kid = generateKeyId(record.publicKey);
+      const key = this.keySet?.keys.get(kid) ?? toCachedKey(record);
+      key.record = record;
+      keys.set(kid, key);
+      // Records are newest first, so the newest active key per algorithm wins
+      if (record.isActive && !active.has(record.algorithm)) {
+        active.set(record.algorithm, key);
+      }
+    }
+
+    this.stats.jwksBuilds++;
+    this.keySet = {
+      version,
+      active,
+      keys,
+      jwks: buildJwks([...keys.values()])
+    };
+    this.scheduleExpiry(records);
+    return this.keySet;
+  }
+
+  /**
+   * Drop retired keys from the set once their grace period ends. Nothing is
+   * written to MongoDB at that moment, so no change notification will fire.
+   */
+  private scheduleExpiry(records: JwtKeys[]) {
+    if (this.expiryTimer) {
+      clearTimeout(this.expiryTimer);
+      this.expiryTimer = null;
+    }
+
+    const expiries = records
+      .filter(record => !record.isActive && record.verifyUntil)
+      .map(record => new Date(record.verifyUntil!).getTime());
+    if (expiries.length === 0) return;
+
+    // setTimeout cannot wait longer than ~24.8 days; re-check at least that often
+    const delay = Math.min(Math.max(0, Math.min(...expiries) - Date.now()) + 1000, 2 ** 31 - 1);
+    this.expiryTimer = setTimeout(() => {
+      this.reload().catch(console.error);
+    }, delay);
+    this.expiryTimer.unref();
+  }
+}
@@ -0,0 +1,41 @@
+/**
+ * Cluster-wide Leases
+ *
+ * Lightweight mutual exclusion between nodes for background jobs that must
+ * run on one node at a time (key generation and rotation). A lease is a
+ * document in the locks collection that expires on its own, so a node that
+ * dies while holding one blocks the job for at most the lease TTL.
+ */
+
+import crypto from "crypto";
+import { db } from "./db";
+
+interface LeaseDocument {
+  _id: string;
+  holder: string;
+  expiresAt: Date;
+}
+
+const NODE_ID = crypto.randomBytes(8).toString('hex');
+
+export async function acquireLease(name: string, ttlMs: number): Promise<boolean> {
+  const now = new Date();
+  try {
+    // Matches only a free (expired) lease; a live one makes the upsert collide on _id
+    await db.collection<LeaseDocument>('locks').updateOne(
+      { _id: name, expiresAt: { $lte: now } },
+      { $set: { holder: NODE_ID, expiresAt: new Date(now.getTime() + ttlMs) } },
+      { upsert: true }
+    );
+    return true;
+  } catch (error) {
+    if ((error as { code?: number }).code === 11000) {
+      return false;
+    }
+    throw error;
+  }
+}
+
+export async function releaseLease(name: string): Promise<void> {
+  await db.collection<LeaseDocument>('locks').deleteOne({ _id: name, holder: NODE_ID });
+}
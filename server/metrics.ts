@@ -0,0 +1,378 @@
+/**
+ * Metrics Registry
+ *
+ * Counters and latency histograms exposed at /metrics in the OpenMetrics text
+ * format. Recording is cheap enough to leave on under production load:
+ * - every label combination is registered up front (or once, on first use)
+ *   and callers keep a reference to its series, so recording is a plain
+ *   property update with no string building, lookups or allocation. The one
+ *   exception is instrumentAsyncMethods, whose wrapper costs a promise per
+ *   call (see there);
+ * - histograms use fixed log-linear buckets (1-9 x each power of ten, from
+ *   10us to 90s), which keeps relative error per bucket bounded like an HDR
+ *   histogram while observe() is a binary search over a typed array.
+ *
+ * Values that components already track in getStats() are exported through
+ * collectors, which are only evaluated when /metrics is scraped.
+ */
+
+import { performance, monitorEventLoopDelay } from "perf_hooks";
+import type { Request, Response, NextFunction } from "express";
+
+type MetricType = 'counter' | 'gauge' | 'histogram';
+
+function durationBuckets(): Float64Array {
+  const bounds: number[] = [];
+  for (let exponent = -5; exponent <= 1; exponent++) {
+    for (let mantissa = 1; mantissa <= 9; mantissa++) {
+      bounds.push(Number((mantissa * 10 ** exponent).toPrecision(2)));
+    }
+  }
+  return Float64Array.from(bounds);
+}
+
+const DURATION_BUCKETS = durationBuckets();
+
+function escapeLabelValue(value: string): string {
+  return value.replace(/\\/g, '\\\\').replace(/"/g, '\\"').replace(/\n/g, '\\n');
+}
+
+function formatLabels(names: readonly string[], values: readonly string[], extra = ''): string {
+  const pairs = names.map((name, i) => `${name}="${escapeLabelValue(values[i])}"`);
+  if (extra) pairs.push(extra);
+  return pairs.length > 0 ? `{${pairs.join(',')}}` : '';
+}
+
+export class CounterSeries {
+  value = 0;
+
+  inc(amount = 1) {
+    this.value += amount;
+  }
+}
+
+export class HistogramSeries {
+  readonly counts: Float64Array; // Per bucket, not cumulative; the last slot is +Inf
+  sum = 0;
+  count = 0;
+
+  constructor(readonly bounds: Float64Array) {
+    this.counts = new Float64Array(bounds.length + 1);
+  }
+
+  observe(value: number) {
+    let low = 0;
+    let high = this.bounds.length;
+    while (low < high) {
+      const mid = (low + high) >>> 1;
+      if (this.bounds[mid] < value) low = mid + 1;
+      else high = mid;
+    }
+    this.counts[low]++;
+    this.sum += value;
+    this.count++;
+  }
+
+  /**
+   * Record the time elapsed since start, a performance.now() reading.
+   */
+  observeSince(start: number) {
+    this.observe((performance.now() - start) / 1000);
+  }
+}
+
+abstract class MetricFamily<S> {
+  protected series = new Map<string, { labels: string[]; series: S }>();
+
+  constructor(
+    readonly name: string,
+    readonly help: string,
+    readonly labelNames: readonly string[] = []
+  ) {}
+
+  abstract readonly type: MetricType;
+  protected abstract create(): S;
+  protected abstract renderSeries(labels: string[], series: S): string[];
+
+  /**
+   * The series for these label values, registered on first use. Call this
+   * at setup time and keep the result; it is not meant for the hot path.
+   */
+  labels(...values: string[]): S {
+    if (values.length !== this.labelNames.length) {
+      throw new Error(`${this.name} expects labels ${this.labelNames.join(', ')}`);
+    }
+    const key = values.join('\u0000');
+    let entry = this.series.get(key);
+    if (!entry) {
+      entry = { labels: values, series: this.create() };
+      this.series.set(key, entry);
+    }
+    return entry.series;
+  }
+
+  render(): string[] {
+    const lines = [`# TYPE ${this.name} ${this.type}`, `# HELP ${this.name} ${this.help}`];
+    for (const { labels, series } of this.series.values()) {
+      lines.push(...this.renderSeries(labels, series));
+    }
+    return lines;
+  }
+}
+
+export class CounterFamily extends MetricFamily<CounterSeries> {
+  readonly type = 'counter';
+
+  protected create() {
+    return new CounterSeries();
+  }
+
+  protected renderSeries(labels: string[], series: CounterSeries) {
+    return [`${this.name}_total${formatLabels(this.labelNames, labels)} ${series.value}`];
+  }
+}
+
+export class HistogramFamily extends MetricFamily<HistogramSeries> {
+  readonly type = 'histogram';
+
+  constructor(name: string, help: string, labelNames: readonly string[] = [], private bounds = DURATION_BUCKETS) {
+    super(name, help, labelNames);
+  }
+
+  protected create() {
+    return new HistogramSeries(this.bounds);
+  }
+
+  protected renderSeries(labels: string[], series: HistogramSeries) {
+    const lines: string[] = [];
+    let cumulative = 0;
+    for (let i = 0; i < series.counts.length; i++) {
+      cumulative += series.counts[i];
+      const le = i < this.bounds.length ? String(this.bounds[i]) : '+Inf';
+      lines.push(`${this.name}_bucket${formatLabels(this.labelNames, labels, `le="${le}"`)} ${cumulative}`);
+    }
+    lines.push(`${this.name}_count${formatLabels(this.labelNames, labels)} ${series.count}`);
+    lines.push(`${this.name}_sum${formatLabels(this.labelNames, labels)} ${series.sum}`);
+    return lines;
+  }
+}
+
+export interface CollectedValue {
+  labels?: string[];
+  value: number;
+}
+
+/**
+ * Values read from elsewhere at scrape time, e.g. a component's getStats().
+ */
+class CollectorFamily {
+  constructor(
+    readonly name: string,
+    readonly type: 'counter' | 'gauge',
+    readonly help: string,
+    readonly labelNames: readonly string[],
+    private collect: () => CollectedValue[] | number
+  ) {}
+
+  render(): string[] {
+    const collected = this.collect();
+    const values = typeof collected === 'number' ? [{ value: collected }] : collected;
+    const sample = this.type === 'counter' ? `${this.name}_total` : this.name;
+    return [
+      `# TYPE ${this.name} ${this.type}`,
+      `# HELP ${this.name} ${this.help}`,
+      ...values.map(({ labels = [], value }) => `${sample}${formatLabels(this.labelNames, labels)} ${value}`)
+    ];
+  }
+}
+
+export class MetricsRegistry {
+  private families: { name: string; render(): string[] }[] = [];
+
+  private register<F extends { name: string; render(): string[] }>(family: F): F {
+    if (this.families.some(existing => existing.name === family.name)) {
+      throw new Error(`Metric ${family.name} is already registered`);
+    }
+    this.families.push(family);
+    return family;
+  }
+
+  counter(name: string, help: string, labelNames: readonly string[] = []): CounterFamily {
+    return this.register(new CounterFamily(name, help, labelNames));
+  }
+
+  histogram(name: string, help: string, labelNames: readonly string[] = []): HistogramFamily {
+    return this.register(new HistogramFamily(name, help, labelNames));
+  }
+
+  collector(
+    name: string,
+    type: 'counter' | 'gauge',
+    help: string,
+    labelNames: readonly string[],
+    collect: () => CollectedValue[] | number
+  ) {
+    this.register(new CollectorFamily(name, type, help, labelNames, collect));
+  }
+
+  /**
+   * All metrics in the OpenMetrics text format.
+   */
+  render(): string {
+    const lines: string[] = [];
+    for (const family of this.families) {
+      try {
+        lines.push(...family.render());
+      } catch (error) {
+        // A failing collector must not take down the whole scrape
+        console.error(`Failed to collect metric ${family.name}:`, error);
+      }
+    }
+    lines.push('# EOF');
+    return lines.join('\n') + '\n';
+  }
+}
+
+export const metrics = new MetricsRegistry();
+
+export const OPENMETRICS_CONTENT_TYPE = 'application/openmetrics-text; version=1.0.0; charset=utf-8';
+
+// HTTP requests, by matched route pattern and status code
+export const httpRequestDuration = metrics.histogram(
+  'http_request_duration_seconds',
+  'HTTP request latency by route and status.',
+  ['route', 'status']
+);
+
+// Totals behind the health endpoint's request summary
+export const httpTotals = { total: 0, successful: 0, failed: 0, seconds: 0 };
+
+// Matched route (Express keeps one object per route) -> series indexed by
+// status code; filled on first use of each pair
+const routeSeries = new Map<unknown, (HistogramSeries | undefined)[]>();
+const requestStart = Symbol('requestStart');
+
+function recordRequest(this: Response) {
+  const start: number | undefined = (this as any)[requestStart];
+  if (start === undefined) return;
+  const seconds = (performance.now() - start) / 1000;
+  const status = this.statusCode;
+  const route = this.req.route ?? 'unmatched';
+
+  let byStatus = routeSeries.get(route);
+  if (!byStatus) {
+    byStatus = new Array(600);
+    routeSeries.set(route, byStatus);
+  }
+  const index = status >= 100 && status < 600 ? status : 0;
+  let series = byStatus[index];
+  if (!series) {
+    const label = route === 'unmatched' ? route : `${this.req.baseUrl}${String(this.req.route.path)}`;
+    series = httpRequestDuration.labels(label, String(status));
+    byStatus[index] = series;
+  }
+  series.observe(seconds);
+
+  httpTotals.total++;
+  httpTotals.seconds += seconds;
+  if (status >= 200 && status < 400) {
+    httpTotals.successful++;
+  } else {
+    httpTotals.failed++;
+  }
+}
+
+/**
+ * Times every request. The finish listener is a shared function, so nothing
+ * is allocated per request beyond the start timestamp. The route label is the
+ * router's mount path plus the route pattern, taken the first time a route
+ * finishes with a given status; a router mounted at several paths reports all
+ * of its routes under the first mount path seen.
+ */
+export function requestMetrics(req: Request, res: Response, next: NextFunction) {
+  (res as any)[requestStart] = performance.now();
+  res.on('finish', recordRequest);
+  next();
+}
+
+export const mongoOperationDuration = metrics.histogram(
+  'mongo_operation_duration_seconds',
+  'Duration of MongoStorage methods, including cache hits.',
+  ['method', 'outcome']
+);
+
+/**
+ * Wrap each async method on a prototype so its duration is recorded in
+ * family under the method name, with outcome success or error.
+ *
+ * Unlike the other recorders this allocates on every call: waiting for the
+ * method's promise to settle takes one more promise and a pair of callbacks.
+ * That is small next to the MongoDB round trip being timed, and cache hits
+ * served without one pay it too. Arguments are passed through without being
+ * copied into an array.
+ */
+export function instrumentAsyncMethods(prototype: object, family: HistogramFamily) {
+  for (const name of Object.getOwnPropertyNames(prototype)) {
+    const descriptor = Object.getOwnPropertyDescriptor(prototype, name);
+    const method = descriptor?.value;
+    // Async generators and sync helpers are left alone
+    if (name === 'constructor' || typeof method !== 'function' || method.constructor.name !== 'AsyncFunction') {
+      continue;
+    }
+
+    const success = family.labels(name, 'success');
+    const failure = family.labels(name, 'error');
+    Object.defineProperty(prototype, name, {
+      ...descriptor,
+      value: function (this: unknown) {
+        const start = performance.now();
+        return (method.apply(this, arguments) as Promise<unknown>).then(
+          result => {
+            success.observeSince(start);
+            return result;
+          },
+          error => {
+            failure.observeSince(start);
+            throw error;
+          }
+        );
+      }
+    });
+  }
+}
+
+export const jwtOperationDuration = metrics.histogram(
+  'jwt_operation_duration_seconds',
+  'JWT signing and signature verification latency by algorithm.',
+  ['operation', 'algorithm']
+);
+
+export const rateLimitRejections = metrics.counter(
+  'rate_limit_rejections',
+  'Requests rejected by a rate limiter, by limiter and the quota that rejected.',
+  ['limiter', 'dimension']
+);
+
+// Event loop delay, sampled every 10ms by a libuv timer
+const eventLoopDelay = monitorEventLoopDelay({ resolution: 10 });
+eventLoopDelay.enable();
+
+metrics.collector(
+  'nodejs_eventloop_lag_seconds',
+  'gauge',
+  'Event loop delay since the previous scrape.',
+  ['stat'],
+  () => {
+    const values = [
+      { labels: ['mean'], value: eventLoopDelay.mean / 1e9 },
+      { labels: ['p50'], value: eventLoopDelay.percentile(50) / 1e9 },
+      { labels: ['p99'], value: eventLoopDelay.percentile(99) / 1e9 },
+      { labels: ['max'], value: eventLoopDelay.max / 1e9 }
+    ].map(entry => ({ ...entry, value: Number.isFinite(entry.value) ? entry.value : 0 }));
+    eventLoopDelay.reset();
+    return values;
+  }
+);
+
+metrics.collector('process_resident_memory_bytes', 'gauge', 'Resident set size.', [], () => process.memoryUsage.rss());
+metrics.collector('nodejs_heap_used_bytes', 'gauge', 'V8 heap in use.', [], () => process.memoryUsage().heapUsed);
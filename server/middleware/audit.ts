@@ -3,10 +3,28 @@
  * 
  * Comprehensive audit logging for compliance, security monitoring, and operational insights.
  * Tracks all authentication events, admin actions, and system operations.
+ *
+ * log() only records the event in memory. Events are queued in a bounded
+ * ring buffer and written to the configured sink (see auditSink.ts) in
+ * batches, so the request path never pays for serialization or I/O. When the
+ * queue is full, AUDIT_OVERFLOW_POLICY decides what happens: "drop" discards
+ * the new event and counts it, "block" holds the response in auditMiddleware
+ * until the sink has caught up.
  */
 
 import { Request, Response, NextFunction } from "express";
 import { randomUUID } from "crypto";
+import { RingBuffer } from "../ringBuffer";
+import { AuditSink, createAuditSink } from "./auditSink";
+
+const QUEUE_CAPACITY = parseInt(process.env.AUDIT_QUEUE_SIZE || "10000", 10);
+const BATCH_SIZE = parseInt(process.env.AUDIT_BATCH_SIZE || "500", 10);
+const FLUSH_INTERVAL_MS = parseInt(process.env.AUDIT_FLUSH_INTERVAL_MS || "1000", 10);
+const OVERFLOW_POLICY: 'drop' | 'block' = process.env.AUDIT_OVERFLOW_POLICY === 'block' ? 'block' : 'drop';
+
+// Rolling 24h event histogram: 96 buckets of 15 minutes
+const HISTOGRAM_BUCKET_MS = 15 * 60 * 1000;
+const HISTOGRAM_BUCKETS = 96;
 
 export enum AuditEventType {
   LOGIN_SUCCESS = "auth.login.success",
@@ -24,6 +42,7 @@ export interface AuditLog {
   id: string;
   timestamp: Date;
   eventType: AuditEventType;
+  tenantId?: string;
   userId?: string;
   clientId?: string;
   ipAddress: string;
@@ -36,9 +55,61 @@ export interface AuditLog {
   correlationId: string;
 }
 
+/**
+ * Counts of events per 15-minute bucket over the last 24 hours. Buckets are
+ * reused in place as time moves on, so recording and reading are O(1).
+ */
+class RollingHistogram {
+  private counts = new Array<number>(HISTOGRAM_BUCKETS).fill(0);
+  private bucketStarts = new Array<number>(HISTOGRAM_BUCKETS).fill(0);
+
+  record(time: number) {
+    const start = time - (time % HISTOGRAM_BUCKET_MS);
+    const index = Math.floor(start / HISTOGRAM_BUCKET_MS) % HISTOGRAM_BUCKETS;
+    if (this.bucketStarts[index] !== start) {
+      this.bucketStarts[index] = start;
+      this.counts[index] = 0;
+    }
+    this.counts[index]++;
+  }
+
+  total(now = Date.now()): number {
+    const oldest = now - (now % HISTOGRAM_BUCKET_MS) - (HISTOGRAM_BUCKETS - 1) * HISTOGRAM_BUCKET_MS;
+    let total = 0;
+    for (let i = 0; i < HISTOGRAM_BUCKETS; i++) {
+      if (this.bucketStarts[i] >= oldest) {
+        total += this.counts[i];
+      }
+    }
+    return total;
+  }
+}
+
 class AuditLogger {
-  private logs: AuditLog[] = [];
-  private maxLogs = 10000;
+  // Most recent events, in time order; counters cover exactly these events
+  private logs = new RingBuffer<AuditLog>(10000);
+  private eventCounts = new Map<AuditEventType, number>();
+  private histogram = new RollingHistogram();
+  private queue = new RingBuffer<AuditLog>(QUEUE_CAPACITY);
+  private flushTimer: NodeJS.Timeout | null = null;
+  private flushing: Promise<void> | null = null;
+  private capacityWaiters: (() => void)[] = [];
+  private pipelineStats = {
+    written: 0,
+    dropped: 0,
+    batches: 0,
+    writeErrors: 0
+  };
+
+  constructor(private sink: AuditSink = createAuditSink()) {}
+
+  get overflowPolicy(): 'drop' | 'block' {
+    return OVERFLOW_POLICY;
+  }
+
+  get hasCapacity(): boolean {
+    return !this.queue.isFull;
+  }
 
   log(event: Omit<AuditLog, 'id' | 'timestamp'>): void {
     const auditLog: AuditLog = {
@@ -47,54 +118,113 @@ class AuditLogger {
       ...event
     };
 
-    this.logs.push(auditLog);
-    
-    if (this.logs.length > this.maxLogs) {
-      this.logs = this.logs.slice(-this.maxLogs);
+    const evicted = this.logs.pushOverwrite(auditLog);
+    if (evicted) {
+      this.eventCounts.set(evicted.eventType, (this.eventCounts.get(evicted.eventType) ?? 1) - 1);
+    }
+    this.eventCounts.set(auditLog.eventType, (this.eventCounts.get(auditLog.eventType) ?? 0) + 1);
+    this.histogram.record(auditLog.timestamp.getTime());
+
+    if (!this.queue.push(auditLog)) {
+      this.pipelineStats.dropped++;
+    }
+    this.scheduleFlush();
+  }
+
+  /**
+   * Resolves once the queue has room. Used by the block overflow policy.
+   */
+  waitForCapacity(): Promise<void> {
+    if (this.hasCapacity) {
+      return Promise.resolve();
+    }
+    this.scheduleFlush();
+    return new Promise(resolve => this.capacityWaiters.push(resolve));
+  }
+
+  /**
+   * Write everything queued so far to the sink.
+   */
+  async flush(): Promise<void> {
+    while (this.flushing) {
+      await this.flushing;
+    }
+    while (this.queue.size > 0) {
+      this.flushing = this.writeBatch(this.queue.drain(BATCH_SIZE));
+      await this.flushing;
+      this.flushing = null;
+    }
+  }
+
+  getPipelineStats() {
+    return {
+      sink: this.sink.name,
+      policy: OVERFLOW_POLICY,
+      queued: this.queue.size,
+      capacity: this.queue.capacity,
+      ...this.pipelineStats
+    };
+  }
+
+  private scheduleFlush() {
+    if (this.flushing) return;
+    if (this.queue.size >= BATCH_SIZE || this.queue.isFull) {
+      if (this.flushTimer) {
+        clearTimeout(this.flushTimer);
+        this.flushTimer = null;
+      }
+      setImmediate(() => this.flush().catch(() => {}));
+      return;
+    }
+    if (!this.flushTimer) {
+      this.flushTimer = setTimeout(() => {
+        this.flushTimer = null;
+        this.flush().catch(() => {});
+      }, FLUSH_INTERVAL_MS);
+      this.flushTimer.unref();
     }
+  }
 
-    console.log(JSON.stringify({
-      level: this.getLogLevel(event.eventType),
-      timestamp: auditLog.timestamp.toISOString(),
-      message: `${event.eventType}: ${event.method} ${event.url}`,
-      audit: auditLog
-    }));
+  private async writeBatch(batch: AuditLog[]) {
+    // Room was freed by draining; release responses held by the block policy
+    const waiters = this.capacityWaiters.splice(0);
+    waiters.forEach(resolve => resolve());
+
+    try {
+      await this.sink.write(batch);
+      this.pipelineStats.written += batch.length;
+      this.pipelineStats.batches++;
+    } catch (error) {
+      this.pipelineStats.writeErrors++;
+      this.pipelineStats.dropped += batch.length;
+      console.error(`Audit sink ${this.sink.name} failed, dropped ${batch.length} events:`, error);
+    }
   }
 
   getLogs(limit = 100): AuditLog[] {
-    return this.logs
-      .sort((a, b) => b.timestamp.getTime() - a.timestamp.getTime())
-      .slice(0, limit);
+    return this.logs.newest(limit);
   }
 
   getStats() {
-    const now = new Date();
-    const last24h = new Date(now.getTime() - 24 * 60 * 60 * 1000);
-    
-    const recentLogs = this.logs.filter(log => log.timestamp > last24h);
+    const count = (eventType: AuditEventType) => this.eventCounts.get(eventType) ?? 0;
     
     return {
-      total: this.logs.length,
-      last24h: recentLogs.length,
-      loginAttempts: this.logs.filter(log => 
-        log.eventType === AuditEventType.LOGIN_SUCCESS || 
-        log.eventType === AuditEventType.LOGIN_FAILURE
-      ).length,
-      securityEvents: this.logs.filter(log => 
-        log.eventType === AuditEventType.SECURITY_EVENT
-      ).length
+      total: this.logs.size,
+      last24h: this.histogram.total(),
+      loginAttempts: count(AuditEventType.LOGIN_SUCCESS) + count(AuditEventType.LOGIN_FAILURE),
+      failedLogins: count(AuditEventType.LOGIN_FAILURE),
+      securityEvents: count(AuditEventType.SECURITY_EVENT)
     };
   }
-
-  private getLogLevel(eventType: AuditEventType): string {
-    if (eventType.includes('error')) return 'error';
-    if (eventType.includes('security')) return 'warn';
-    return 'info';
-  }
 }
 
 export const auditLogger = new AuditLogger();
 
+// Write out whatever is still queued when the event loop drains
+process.once('beforeExit', () => {
+  auditLogger.flush().catch(() => {});
+});
+
 export function auditMiddleware(req: Request, res: Response, next: NextFunction) {
   const startTime = Date.now();
   const correlationId = randomUUID();
@@ -119,9 +249,10 @@ export function auditMiddleware(req: Request, res: Response, next: NextFunction)
       eventType = AuditEventType.ADMIN_ACTION;
     }
 
-    auditLogger.log({
+    const event = {
       eventType,
-      userId: (req as any).user?.id,
+      tenantId: req.tenantId || req.user?.tenantId,
+      userId: req.user?._id?.toString(),
       clientId: req.body?.client_id || req.query?.client_id as string,
       ipAddress: req.ip || req.connection.remoteAddress || 'unknown',
       userAgent: req.get('User-Agent') || 'unknown',
@@ -134,8 +265,18 @@ export function auditMiddleware(req: Request, res: Response, next: NextFunction)
         query: req.query,
         params: req.params
       }
-    });
+    };
+
+    if (auditLogger.overflowPolicy === 'block' && !auditLogger.hasCapacity) {
+      // Back-pressure: hold the response until the sink has drained the queue
+      auditLogger.waitForCapacity().then(() => {
+        auditLogger.log(event);
+        originalEnd.call(this, chunk, encoding);
+      });
+      return this;
+    }
 
+    auditLogger.log(event);
     return originalEnd.call(this, chunk, encoding);
   };
 
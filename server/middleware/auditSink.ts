@@ -0,0 +1,126 @@
+/**
+ * Audit Log Sinks
+ *
+ * Destinations for batches of audit events, written by AuditLogger off the
+ * request path. Serialization happens here, once per batch.
+ *
+ * - mongo: insertMany into the auditLogs collection. Events expire through a
+ *   TTL index on timestamp after AUDIT_RETENTION_DAYS. This is the only sink
+ *   the admin audit API can query.
+ * - file: NDJSON appended to AUDIT_LOG_FILE, rotated to a timestamped file
+ *   once it exceeds AUDIT_LOG_FILE_MAX_BYTES.
+ * - console: one JSON line per event on stdout (the previous behaviour).
+ *
+ * The sink is selected with AUDIT_SINK=mongo|file|console.
+ */
+
+import { promises as fs } from "fs";
+import { db } from "../db";
+import type { AuditLog } from "./audit";
+
+const RETENTION_DAYS = parseInt(process.env.AUDIT_RETENTION_DAYS || "90", 10);
+const LOG_FILE = process.env.AUDIT_LOG_FILE || "audit.ndjson";
+const LOG_FILE_MAX_BYTES = parseInt(process.env.AUDIT_LOG_FILE_MAX_BYTES || String(100 * 1024 * 1024), 10);
+
+export interface AuditSink {
+  readonly name: string;
+  write(batch: AuditLog[]): Promise<void>;
+}
+
+function logLevel(eventType: string): string {
+  if (eventType.includes('error')) return 'error';
+  if (eventType.includes('security')) return 'warn';
+  return 'info';
+}
+
+export class MongoAuditSink implements AuditSink {
+  readonly name = 'mongo';
+  private indexReady: Promise<void> | null = null;
+
+  constructor(private collectionName = 'auditLogs') {}
+
+  private ensureIndexes(): Promise<void> {
+    if (!this.indexReady) {
+      const collection = db.collection(this.collectionName);
+      this.indexReady = Promise.all([
+        collection.createIndex({ timestamp: 1 }, { expireAfterSeconds: RETENTION_DAYS * 24 * 60 * 60 }),
+        // Filters used by the admin audit API; _id breaks timestamp ties for keyset pagination
+        collection.createIndex({ tenantId: 1, timestamp: -1, _id: -1 }),
+        collection.createIndex({ userId: 1, timestamp: -1, _id: -1 }),
+        collection.createIndex({ clientId: 1, timestamp: -1, _id: -1 }),
+        collection.createIndex({ eventType: 1, timestamp: -1, _id: -1 })
+      ])
+        .then(() => undefined)
+        .catch(error => {
+          // e.g. an existing TTL index with a different retention; writes still work
+          console.warn(`Could not create audit indexes: ${error.message}`);
+        });
+    }
+    return this.indexReady;
+  }
+
+  async write(batch: AuditLog[]): Promise<void> {
+    await this.ensureIndexes();
+    // The event id doubles as _id, so a retried batch cannot insert duplicates
+    const docs = batch.map(({ id, ...event }) => ({ _id: id, ...event }));
+    try {
+      await db.collection<{ _id: string }>(this.collectionName).insertMany(docs, { ordered: false });
+    } catch (error: any) {
+      const duplicatesOnly = error?.writeErrors?.every?.((writeError: any) => writeError.code === 11000);
+      if (!duplicatesOnly) {
+        throw error;
+      }
+    }
+  }
+}
+
+export class FileAuditSink implements AuditSink {
+  readonly name = 'file';
+  private bytesWritten: number | null = null;
+
+  constructor(private path = LOG_FILE, private maxBytes = LOG_FILE_MAX_BYTES) {}
+
+  async write(batch: AuditLog[]): Promise<void> {
+    if (this.bytesWritten === null) {
+      this.bytesWritten = await fs.stat(this.path).then(stat => stat.size, () => 0);
+    }
+    if (this.bytesWritten >= this.maxBytes) {
+      await this.rotate();
+    }
+
+    const data = batch.map(event => JSON.stringify(event)).join('\n') + '\n';
+    await fs.appendFile(this.path, data);
+    this.bytesWritten += Buffer.byteLength(data);
+  }
+
+  private async rotate() {
+    const suffix = new Date().toISOString().replace(/[:.]/g, '-');
+    await fs.rename(this.path, `${this.path}.${suffix}`).catch(() => {});
+    this.bytesWritten = 0;
+  }
+}
+
+export class ConsoleAuditSink implements AuditSink {
+  readonly name = 'console';
+
+  async write(batch: AuditLog[]): Promise<void> {
+    const lines = batch.map(event => JSON.stringify({
+      level: logLevel(event.eventType),
+      timestamp: event.timestamp.toISOString(),
+      message: `${event.eventType}: ${event.method} ${event.url}`,
+      audit: event
+    }));
+    process.stdout.write(lines.join('\n') + '\n');
+  }
+}
+
+export function createAuditSink(): AuditSink {
+  switch (process.env.AUDIT_SINK) {
+    case 'file':
+      return new FileAuditSink();
+    case 'console':
+      return new ConsoleAuditSink();
+    default:
+      return new MongoAuditSink();
+  }
+}
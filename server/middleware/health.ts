@@ -3,24 +3,67 @@
  * 
  * Provides comprehensive health checks, metrics, and monitoring endpoints
  * for enterprise production deployment and monitoring.
+ *
+ * Checks run in the background every HEALTH_PROBE_INTERVAL_MS, and the
+ * /health, /ready and /live endpoints only read the latest result, so probe
+ * traffic never reaches MongoDB however many probes there are.
+ *
+ * /health is a liveness check: it fails only while the probe loop is stuck
+ * or has not finished its first run, and reports failing checks without
+ * failing on them. /ready fails on the checks that should take the instance
+ * out of rotation. Check details and metrics are only included for callers
+ * allowed to read /metrics.
  */
 
 import { Request, Response } from "express";
+import { timingSafeEqual } from "crypto";
 import { db } from "../db";
 import { auditLogger } from "./audit";
+import { jwtService } from "../jwt";
+import { revocationList } from "../revocation";
+import { storage } from "../storage";
+import { getIntrospectionStats } from "../oauth";
+import { rateLimitStore } from "./rateLimitStore";
+import { metrics, httpTotals, OPENMETRICS_CONTENT_TYPE } from "../metrics";
+import { usageCounters } from "../usageCounters";
+
+const PROBE_INTERVAL_MS = parseInt(process.env.HEALTH_PROBE_INTERVAL_MS || "10000", 10);
+const PROBE_TIMEOUT_MS = parseInt(process.env.HEALTH_PROBE_TIMEOUT_MS || "2000", 10);
+// A result older than this means the probe loop itself is stuck
+const PROBE_STALE_MS = 3 * PROBE_INTERVAL_MS;
+
+// /metrics access: a bearer token, a list of peer addresses, or loopback only when neither is set
+const METRICS_TOKEN = process.env.METRICS_TOKEN || '';
+const METRICS_ALLOWED_IPS = (process.env.METRICS_ALLOWED_IPS || '')
+  .split(',')
+  .map(ip => ip.trim())
+  .filter(Boolean);
+const LOOPBACK_ADDRESSES = ['127.0.0.1', '::1', '::ffff:127.0.0.1'];
 
 interface HealthStatus {
   status: 'healthy' | 'unhealthy' | 'degraded';
   timestamp: string;
   version: string;
   uptime: number;
-  checks: {
-    database: HealthCheck;
-    memory: HealthCheck;
-    disk: HealthCheck;
-    audit: HealthCheck;
-  };
-  metrics: SystemMetrics;
+  checkedAt: string;
+  stale: boolean;
+  checks: HealthChecks;
+  metrics?: SystemMetrics;
+}
+
+interface HealthChecks {
+  database: HealthCheck;
+  memory: HealthCheck;
+  disk: HealthCheck;
+  audit: HealthCheck;
+  signingKey: HealthCheck;
+  rateLimitStore: HealthCheck;
+}
+
+interface ReadinessStatus {
+  ready: boolean;
+  checkedAt: string | null;
+  checks: Partial<Pick<HealthChecks, 'database' | 'signingKey' | 'rateLimitStore'>>;
 }
 
 interface HealthCheck {
@@ -41,63 +84,139 @@ interface SystemMetrics {
     totalLogins: number;
     failedLogins: number;
     activeUsers: number;
+    totalUsers: number;
   };
   oauth: {
     totalTokens: number;
     activeTokens: number;
     revokedTokens: number;
+    usageReconciledAt: string | null;
+    introspectionMode: string;
+    introspectionFast: number;
+    introspectionStrict: number;
+    introspectionRefresh: number;
+    introspectionInactive: number;
+  };
+  jwt: {
+    keyCacheHits: number;
+    keyCacheMisses: number;
+    keyCacheReloads: number;
+    revocationListSize: number;
+    revocationBloomNegatives: number;
+    revocationRemoteChecks: number;
+    signingQueueDepth: number;
+    signingAverageLatencyMs: number;
+  };
+  audit: {
+    sink: string;
+    queued: number;
+    written: number;
+    dropped: number;
+    writeErrors: number;
+  };
+  caches: {
+    clientHitRatio: number;
+    clientMisses: number;
+    clientEntries: number;
+    tenantHitRatio: number;
+    tenantEntries: number;
+    tenantSetComplete: boolean;
   };
 }
 
+function withTimeout<T>(promise: Promise<T>, ms: number): Promise<T> {
+  let timer: NodeJS.Timeout;
+  const timeout = new Promise<never>((_, reject) => {
+    timer = setTimeout(() => reject(new Error(`Timed out after ${ms}ms`)), ms);
+    timer.unref();
+  });
+  return Promise.race([promise, timeout]).finally(() => clearTimeout(timer));
+}
+
 class HealthMonitor {
   private startTime = Date.now();
-  private requestMetrics = {
-    total: 0,
-    successful: 0,
-    failed: 0,
-    totalResponseTime: 0
-  };
+  private probeTimer: NodeJS.Timeout | null = null;
+  private probing = false;
+  private lastChecks: HealthChecks | null = null;
+  private lastCheckedAt: Date | null = null;
 
-  recordRequest(statusCode: number, responseTime: number) {
-    this.requestMetrics.total++;
-    this.requestMetrics.totalResponseTime += responseTime;
-    
-    if (statusCode >= 200 && statusCode < 400) {
-      this.requestMetrics.successful++;
-    } else {
-      this.requestMetrics.failed++;
+  /**
+   * Run the checks now and then every HEALTH_PROBE_INTERVAL_MS.
+   */
+  start() {
+    if (this.probeTimer) return;
+    this.probe().catch(console.error);
+    this.probeTimer = setInterval(() => this.probe().catch(console.error), PROBE_INTERVAL_MS);
+    this.probeTimer.unref();
+  }
+
+  async probe() {
+    if (this.probing) return;
+    this.probing = true;
+    try {
+      const [database, signingKey] = await Promise.all([
+        this.checkDatabase(),
+        this.checkSigningKey()
+      ]);
+      this.lastChecks = {
+        database,
+        memory: this.checkMemory(),
+        disk: this.checkDisk(),
+        audit: this.checkAuditSystem(),
+        signingKey,
+        rateLimitStore: this.checkRateLimitStore()
+      };
+      this.lastCheckedAt = new Date();
+    } finally {
+      this.probing = false;
     }
   }
 
-  async getHealthStatus(): Promise<HealthStatus> {
-    const timestamp = new Date().toISOString();
-    const uptime = Date.now() - this.startTime;
+  /**
+   * Latest check results, with current metrics if asked for, or null before
+   * the first probe has finished. Never waits on I/O.
+   */
+  getHealthStatus(includeMetrics: boolean): HealthStatus | null {
+    if (!this.lastChecks || !this.lastCheckedAt) {
+      return null;
+    }
 
-    const checks = {
-      database: await this.checkDatabase(),
-      memory: this.checkMemory(),
-      disk: this.checkDisk(),
-      audit: this.checkAuditSystem()
+    const stale = Date.now() - this.lastCheckedAt.getTime() > PROBE_STALE_MS;
+    return {
+      status: stale ? 'unhealthy' : this.determineOverallStatus(this.lastChecks),
+      timestamp: new Date().toISOString(),
+      version: process.env.npm_package_version || '1.0.0',
+      uptime: Date.now() - this.startTime,
+      checkedAt: this.lastCheckedAt.toISOString(),
+      stale,
+      checks: this.lastChecks,
+      ...(includeMetrics ? { metrics: this.getMetrics() } : {})
     };
+  }
 
-    const overallStatus = this.determineOverallStatus(checks);
-    const metrics = this.getMetrics();
+  /**
+   * Ready to take traffic: MongoDB answered, a signing key is active and the
+   * rate limit store is reachable, as of a recent probe.
+   */
+  getReadiness(): ReadinessStatus {
+    if (!this.lastChecks || !this.lastCheckedAt) {
+      return { ready: false, checkedAt: null, checks: {} };
+    }
 
+    const { database, signingKey, rateLimitStore } = this.lastChecks;
+    const fresh = Date.now() - this.lastCheckedAt.getTime() <= PROBE_STALE_MS;
     return {
-      status: overallStatus,
-      timestamp,
-      version: process.env.npm_package_version || '1.0.0',
-      uptime,
-      checks,
-      metrics
+      ready: fresh && database.status !== 'fail' && signingKey.status === 'pass' && rateLimitStore.status === 'pass',
+      checkedAt: this.lastCheckedAt.toISOString(),
+      checks: { database, signingKey, rateLimitStore }
     };
   }
 
   private async checkDatabase(): Promise<HealthCheck> {
     try {
       const start = Date.now();
-      // Test database connectivity
-      const testResult = await db.collection('_health').findOne({});
+      // A ping needs no collection access and is answered by the server directly
+      await withTimeout(db.command({ ping: 1 }), PROBE_TIMEOUT_MS);
       const responseTime = Date.now() - start;
       
       return {
@@ -117,6 +236,32 @@ class HealthMonitor {
     }
   }
 
+  private async checkSigningKey(): Promise<HealthCheck> {
+    try {
+      const active = await withTimeout(jwtService.hasActiveKey(), PROBE_TIMEOUT_MS);
+      return {
+        status: active ? 'pass' : 'fail',
+        time: new Date().toISOString(),
+        ...(active ? {} : { output: 'No active signing key' })
+      };
+    } catch (error) {
+      return {
+        status: 'fail',
+        time: new Date().toISOString(),
+        output: (error as Error).message
+      };
+    }
+  }
+
+  private checkRateLimitStore(): HealthCheck {
+    const stats = rateLimitStore.getStats();
+    return {
+      status: stats.healthy ? 'pass' : 'fail',
+      time: new Date().toISOString(),
+      details: stats
+    };
+  }
+
   private checkMemory(): HealthCheck {
     const memUsage = process.memoryUsage();
     const heapUsedMB = Math.round(memUsage.heapUsed / 1024 / 1024);
@@ -178,25 +323,66 @@ class HealthMonitor {
 
   private getMetrics(): SystemMetrics {
     const auditStats = auditLogger.getStats();
+    const auditPipelineStats = auditLogger.getPipelineStats();
+    const keyCacheStats = jwtService.getKeyCacheStats();
+    const revocationStats = revocationList.getStats();
+    const signingStats = jwtService.getSigningPoolStats();
+    const cacheStats = storage.getCacheStats();
+    const introspectionStats = getIntrospectionStats();
+    const usageStats = usageCounters.getStats();
     
     return {
+      // Recorded by requestMetrics (see metrics.ts)
       requests: {
-        total: this.requestMetrics.total,
-        successful: this.requestMetrics.successful,
-        failed: this.requestMetrics.failed,
-        averageResponseTime: this.requestMetrics.total > 0 
-          ? Math.round(this.requestMetrics.totalResponseTime / this.requestMetrics.total)
+        total: httpTotals.total,
+        successful: httpTotals.successful,
+        failed: httpTotals.failed,
+        averageResponseTime: httpTotals.total > 0 
+          ? Math.round(httpTotals.seconds * 1000 / httpTotals.total)
           : 0
       },
       authentication: {
         totalLogins: auditStats.loginAttempts,
-        failedLogins: 0, // Would track this in production
-        activeUsers: 0    // Would track this in production
+        failedLogins: auditStats.failedLogins,
+        activeUsers: usageStats.activeUsers,
+        totalUsers: usageStats.totalUsers
       },
       oauth: {
-        totalTokens: 0,    // Would track this in production
-        activeTokens: 0,   // Would track this in production
-        revokedTokens: 0   // Would track this in production
+        // Maintained incrementally and reconciled in the background (see usageCounters.ts)
+        totalTokens: usageStats.totalTokens,
+        activeTokens: usageStats.activeTokens,
+        revokedTokens: usageStats.revokedTokens,
+        usageReconciledAt: usageStats.lastReconciledAt,
+        introspectionMode: introspectionStats.mode,
+        introspectionFast: introspectionStats.fast,
+        introspectionStrict: introspectionStats.strict,
+        introspectionRefresh: introspectionStats.refresh,
+        introspectionInactive: introspectionStats.inactive
+      },
+      jwt: {
+        keyCacheHits: keyCacheStats.hits,
+        keyCacheMisses: keyCacheStats.misses,
+        keyCacheReloads: keyCacheStats.reloads,
+        revocationListSize: revocationStats.size,
+        revocationBloomNegatives: revocationStats.bloomNegatives,
+        revocationRemoteChecks: revocationStats.remoteChecks,
+        signingQueueDepth: signingStats.queueDepth + signingStats.inFlight,
+        signingAverageLatencyMs: Math.round(signingStats.averageLatencyMs * 100) / 100
+      },
+      audit: {
+        sink: auditPipelineStats.sink,
+        queued: auditPipelineStats.queued,
+        written: auditPipelineStats.written,
+        dropped: auditPipelineStats.dropped,
+        writeErrors: auditPipelineStats.writeErrors
+      },
+      caches: {
+        clientHitRatio: Math.round(cacheStats.clients.hitRatio * 1000) / 1000,
+        clientMisses: cacheStats.clients.misses,
+        clientEntries: cacheStats.clients.size,
+        tenantHitRatio: Math.round(cacheStats.tenants.hitRatio * 1000) / 1000,
+        tenantEntries: cacheStats.tenants.size,
+        tenantSetComplete: cacheStats.tenants.complete
       }
     };
   }
@@ -204,35 +390,157 @@ class HealthMonitor {
 
 export const healthMonitor = new HealthMonitor();
 
+// Component statistics, read when /metrics is scraped
+metrics.collector('audit_events', 'counter', 'Audit events by pipeline outcome.', ['outcome'], () => {
+  const stats = auditLogger.getPipelineStats();
+  return [
+    { labels: ['written'], value: stats.written },
+    { labels: ['dropped'], value: stats.dropped },
+    { labels: ['write_error'], value: stats.writeErrors }
+  ];
+});
+metrics.collector('audit_queue_depth', 'gauge', 'Audit events waiting to be written.', [], () =>
+  auditLogger.getPipelineStats().queued
+);
+metrics.collector('cache_lookups', 'counter', 'Lookup cache reads by cache and result.', ['cache', 'result'], () => {
+  const { clients, tenants } = storage.getCacheStats();
+  return [
+    { labels: ['client', 'hit'], value: clients.hits },
+    { labels: ['client', 'negative_hit'], value: clients.negativeHits },
+    { labels: ['client', 'miss'], value: clients.misses },
+    { labels: ['tenant', 'hit'], value: tenants.hits },
+    { labels: ['tenant', 'negative_hit'], value: tenants.negativeHits },
+    { labels: ['tenant', 'miss'], value: tenants.misses }
+  ];
+});
+metrics.collector('cache_entries', 'gauge', 'Entries held by each lookup cache.', ['cache'], () => {
+  const { clients, tenants } = storage.getCacheStats();
+  return [
+    { labels: ['client'], value: clients.size },
+    { labels: ['tenant'], value: tenants.size }
+  ];
+});
+metrics.collector('jwt_key_cache_lookups', 'counter', 'Signing key cache reads by result.', ['result'], () => {
+  const stats = jwtService.getKeyCacheStats();
+  return [
+    { labels: ['hit'], value: stats.hits },
+    { labels: ['miss'], value: stats.misses }
+  ];
+});
+metrics.collector('jwt_signing_queue_depth', 'gauge', 'Tokens queued or being signed by the signing pool.', [], () => {
+  const stats = jwtService.getSigningPoolStats();
+  return stats.queueDepth + stats.inFlight;
+});
+metrics.collector('revocation_list_entries', 'gauge', 'Revoked token ids mirrored in memory.', [], () =>
+  revocationList.getStats().size
+);
+metrics.collector('token_introspections', 'counter', 'Token introspections by path.', ['path'], () => {
+  const stats = getIntrospectionStats();
+  return [
+    { labels: ['fast'], value: stats.fast },
+    { labels: ['strict'], value: stats.strict },
+    { labels: ['refresh'], value: stats.refresh },
+    { labels: ['inactive'], value: stats.inactive }
+  ];
+});
+metrics.collector('oauth_tokens', 'gauge', 'Unexpired token records and revocation entries.', ['state'], () => {
+  const stats = usageCounters.getStats();
+  return [
+    { labels: ['active'], value: stats.activeTokens },
+    { labels: ['revoked'], value: stats.totalTokens - stats.activeTokens },
+    { labels: ['revocation_entries'], value: stats.revokedTokens }
+  ];
+});
+metrics.collector('users', 'gauge', 'Registered users, and users who logged in within ACTIVE_USER_WINDOW_MS.', ['state'], () => {
+  const stats = usageCounters.getStats();
+  return [
+    { labels: ['registered'], value: stats.totalUsers },
+    { labels: ['active'], value: stats.activeUsers }
+  ];
+});
+metrics.collector('rate_limit_store_keys', 'gauge', 'Keys tracked by the rate limit store.', [], () =>
+  rateLimitStore.getStats().keys
+);
+
+/**
+ * Check results for callers not allowed to read /metrics: pass, warn or fail
+ * only, without details or error output.
+ */
+function redactChecks<T extends Partial<HealthChecks>>(checks: T): T {
+  const redacted: Partial<HealthChecks> = {};
+  for (const [name, check] of Object.entries(checks) as [keyof HealthChecks, HealthCheck][]) {
+    redacted[name] = { status: check.status, time: check.time };
+  }
+  return redacted as T;
+}
+
 /**
  * Health endpoint handlers
  */
-export async function healthCheck(req: Request, res: Response) {
-  try {
-    const health = await healthMonitor.getHealthStatus();
-    
-    const statusCode = health.status === 'healthy' ? 200 
-                     : health.status === 'degraded' ? 200 
-                     : 503;
-    
-    res.status(statusCode).json(health);
-  } catch (error) {
-    res.status(503).json({
-      status: 'unhealthy',
-      timestamp: new Date().toISOString(),
-      error: (error as Error).message
+export function healthCheck(req: Request, res: Response) {
+  const privileged = metricsAccess(req) === 200;
+  const health = healthMonitor.getHealthStatus(privileged);
+  if (!health) {
+    return res.status(503).json({
+      status: 'starting',
+      timestamp: new Date().toISOString()
     });
   }
+
+  // Liveness only: a failing dependency is reported here and fails /ready
+  res.status(health.stale ? 503 : 200).json(
+    privileged ? health : { ...health, checks: redactChecks(health.checks) }
+  );
 }
 
 export function readinessCheck(req: Request, res: Response) {
-  // Simple readiness check - can be expanded based on requirements
-  res.status(200).json({
-    status: 'ready',
-    timestamp: new Date().toISOString()
+  const readiness = healthMonitor.getReadiness();
+  res.status(readiness.ready ? 200 : 503).json({
+    status: readiness.ready ? 'ready' : 'not_ready',
+    timestamp: new Date().toISOString(),
+    checkedAt: readiness.checkedAt,
+    checks: metricsAccess(req) === 200 ? readiness.checks : redactChecks(readiness.checks)
   });
 }
 
+/**
+ * Whether the caller may read /metrics. With METRICS_TOKEN set, a matching
+ * bearer token is required; with METRICS_ALLOWED_IPS set, the connecting
+ * address must be listed. The socket address is used rather than req.ip so
+ * X-Forwarded-For cannot be spoofed past the list; behind a proxy, list the
+ * proxy. With neither set, only loopback connections are answered.
+ */
+function metricsAccess(req: Request): 200 | 401 | 403 {
+  if (METRICS_TOKEN) {
+    const header = req.headers.authorization || '';
+    const presented = Buffer.from(header.startsWith('Bearer ') ? header.slice('Bearer '.length) : '');
+    const expected = Buffer.from(METRICS_TOKEN);
+    if (presented.length !== expected.length || !timingSafeEqual(presented, expected)) {
+      return 401;
+    }
+  }
+
+  const address = req.socket.remoteAddress || '';
+  if (METRICS_ALLOWED_IPS.length > 0) {
+    return METRICS_ALLOWED_IPS.includes(address) ? 200 : 403;
+  }
+  return METRICS_TOKEN || LOOPBACK_ADDRESSES.includes(address) ? 200 : 403;
+}
+
+export function metricsEndpoint(req: Request, res: Response) {
+  const access = metricsAccess(req);
+  if (access !== 200) {
+    if (access === 401) {
+      res.setHeader('WWW-Authenticate', 'Bearer realm="metrics"');
+    }
+    return res.status(access).json({ error: access === 401 ? 'Unauthorized' : 'Forbidden' });
+  }
+
+  res.setHeader('Content-Type', OPENMETRICS_CONTENT_TYPE);
+  res.setHeader('Cache-Control', 'no-store');
+  res.status(200).send(metrics.render());
+}
+
 export function livenessCheck(req: Request, res: Response) {
   // Simple liveness check
   res.status(200).json({
@@ -0,0 +1,241 @@
+/**
+ * Route-aware Middleware Pipeline
+ *
+ * Each request runs exactly one middleware profile, chosen by path. Browser-
+ * and admin-facing routes get the full chain (session and passport, security
+ * headers, CORS, audit, threat monitoring, rate limiting, response logging).
+ * The machine-to-machine OAuth endpoints, which carry most of the traffic, get
+ * a lean chain with structured, sampled request logging instead of
+ * per-request log lines, and no session: a cookieless call would otherwise
+ * create and save a session document every time.
+ *
+ * Profiles are matched by exact path first, then by the longest prefix
+ * (patterns ending in "*"). The first profile with no paths is the fallback.
+ * Browser chains start with the session middleware, so req.user is set and
+ * rate limits are charged to the user's tenant. With security middleware on,
+ * each enforcing chain then runs attachTenant, so the tenant's threat
+ * scanning settings apply.
+ *
+ * Enforcement defaults (each limiter counts every request, successful or not):
+ * - oauth-machine (token and revoke): 30/min per IP, 600/min per client_id
+ * - introspection: INTROSPECTION_RATE_LIMIT (10000) per second per
+ *   authenticated client, applied by the handlers in oauth.ts; no IP quota
+ * - login (/api/login and /api/register share it): 5 per username and 20
+ *   per IP per 15 minutes
+ * - admin: 60/min per IP
+ * - api (every other /api and /oauth route): 100/min per IP, 10000/min per
+ *   logged-in user's tenant
+ * Tenants may override quotas through settings.rateLimits, but only lower
+ * the ip and username ones.
+ * SECURITY_MIDDLEWARE=off drops security headers, CORS, audit logging and
+ * threat monitoring; RATE_LIMITING=off drops the limiters. With both off
+ * only sessions and request logging remain.
+ */
+
+import { Request, Response, NextFunction, RequestHandler } from "express";
+import { auditMiddleware } from "./audit";
+import { securityHeaders, enterpriseCors, securityMonitoring } from "./security";
+import { attachTenant } from "./tenant";
+import { sessionMiddleware } from "../auth";
+import {
+  RateLimiter,
+  RATE_LIMITING,
+  createRateLimitMiddleware,
+  loginRateLimiter,
+  oauthRateLimiter,
+  generalRateLimiter,
+  adminRateLimiter
+} from "./rateLimiter";
+import { log } from "../vite";
+
+// Fraction of lean-profile requests logged; errors (5xx) are always logged
+const LOG_SAMPLE_RATE = parseFloat(process.env.LOG_SAMPLE_RATE || "0.01");
+const SECURITY_MIDDLEWARE = process.env.SECURITY_MIDDLEWARE !== "off";
+
+export interface PipelineProfile {
+  name: string;
+  paths: string[]; // Exact paths, or prefixes ending in "*"
+  middleware: RequestHandler[];
+}
+
+/**
+ * Request log for browser-facing API routes: one line per /api request,
+ * including a truncated copy of the JSON response.
+ */
+export function apiRequestLogger(req: Request, res: Response, next: NextFunction) {
+  const start = Date.now();
+  const path = req.path;
+  let capturedJsonResponse: Record<string, any> | undefined = undefined;
+
+  const originalResJson = res.json;
+  res.json = function (bodyJson, ...args) {
+    capturedJsonResponse = bodyJson;
+    return originalResJson.apply(res, [bodyJson, ...args]);
+  };
+
+  res.on("finish", () => {
+    const duration = Date.now() - start;
+    if (path.startsWith("/api")) {
+      let logLine = `${req.method} ${path} ${res.statusCode} in ${duration}ms`;
+      if (capturedJsonResponse) {
+        logLine += ` :: ${JSON.stringify(capturedJsonResponse)}`;
+      }
+
+      if (logLine.length > 80) {
+        logLine = logLine.slice(0, 79) + "…";
+      }
+
+      log(logLine);
+    }
+  });
+
+  next();
+}
+
+/**
+ * Structured request log for high-volume endpoints. Only a sample of
+ * requests is written, and response bodies are never captured.
+ */
+export function sampledRequestLogger(req: Request, res: Response, next: NextFunction) {
+  const start = process.hrtime.bigint();
+
+  res.on("finish", () => {
+    if (res.statusCode < 500 && Math.random() >= LOG_SAMPLE_RATE) {
+      return;
+    }
+    process.stdout.write(JSON.stringify({
+      level: res.statusCode >= 500 ? 'error' : 'info',
+      time: new Date().toISOString(),
+      method: req.method,
+      path: req.path,
+      status: res.statusCode,
+      durationMs: Number(process.hrtime.bigint() - start) / 1e6,
+      sampleRate: res.statusCode >= 500 ? 1 : LOG_SAMPLE_RATE
+    }) + '\n');
+  });
+
+  next();
+}
+
+/**
+ * Tenant lookup, optional security layers, request logging and the rate
+ * limiter, if any. The limiter runs after the logger so rejections are
+ * logged too.
+ */
+function enforcingChain(
+  security: RequestHandler[],
+  logger: RequestHandler,
+  limiter: RateLimiter | null
+): RequestHandler[] {
+  const chain: RequestHandler[] = [];
+  if (SECURITY_MIDDLEWARE) chain.push(attachTenant, ...security);
+  chain.push(logger);
+  if (RATE_LIMITING && limiter) chain.push(createRateLimitMiddleware(limiter));
+  return chain;
+}
+
+const browserSession = sessionMiddleware();
+const browserSecurity = [securityHeaders, enterpriseCors, auditMiddleware, securityMonitoring];
+
+export const pipelineProfiles: PipelineProfile[] = [
+  {
+    // Fetched by every resource server; cached responses, nothing to audit
+    name: 'discovery',
+    paths: ['/.well-known/*'],
+    middleware: [sampledRequestLogger]
+  },
+  {
+    name: 'probes',
+    paths: ['/health', '/ready', '/live', '/metrics'],
+    middleware: []
+  },
+  {
+    // Resource servers introspecting every call they serve; limited per
+    // client by the handlers once the client is authenticated
+    name: 'introspection',
+    paths: ['/oauth/introspect', '/oauth/introspect/batch'],
+    middleware: enforcingChain([auditMiddleware], sampledRequestLogger, null)
+  },
+  {
+    // Machine-to-machine OAuth endpoints
+    name: 'oauth-machine',
+    paths: ['/oauth/token', '/oauth/revoke'],
+    middleware: enforcingChain([auditMiddleware], sampledRequestLogger, oauthRateLimiter)
+  },
+  {
+    name: 'login',
+    paths: ['/api/login', '/api/register'],
+    middleware: [...browserSession, ...enforcingChain(browserSecurity, apiRequestLogger, loginRateLimiter)]
+  },
+  {
+    name: 'admin',
+    paths: ['/api/admin/*', '/api/super-admin/*'],
+    middleware: [...browserSession, ...enforcingChain(browserSecurity, apiRequestLogger, adminRateLimiter)]
+  },
+  {
+    // Includes /oauth/authorize, which needs the logged-in user
+    name: 'api',
+    paths: ['/api/*', '/oauth/*'],
+    middleware: [...browserSession, ...enforcingChain(browserSecurity, apiRequestLogger, generalRateLimiter)]
+  },
+  {
+    // Client application and static assets (served by Vite in development)
+    name: 'static',
+    paths: [],
+    middleware: []
+  }
+];
+
+/**
+ * Build a single middleware that runs the matching profile's chain.
+ */
+export function createPipeline(profiles: PipelineProfile[]): RequestHandler {
+  const exact = new Map<string, PipelineProfile>();
+  const prefixes: { prefix: string; profile: PipelineProfile }[] = [];
+  let fallback: PipelineProfile | undefined;
+
+  for (const profile of profiles) {
+    if (profile.paths.length === 0) {
+      fallback = fallback ?? profile;
+    }
+    for (const path of profile.paths) {
+      if (path.endsWith('*')) {
+        prefixes.push({ prefix: path.slice(0, -1), profile });
+      } else if (!exact.has(path)) {
+        exact.set(path, profile);
+      }
+    }
+  }
+  prefixes.sort((a, b) => b.prefix.length - a.prefix.length);
+
+  const profileFor = (path: string): PipelineProfile | undefined => {
+    const match = exact.get(path);
+    if (match) return match;
+    for (const { prefix, profile } of prefixes) {
+      if (path.startsWith(prefix)) return profile;
+    }
+    return fallback;
+  };
+
+  return (req: Request, res: Response, next: NextFunction) => {
+    const chain = profileFor(req.path)?.middleware ?? [];
+    let index = 0;
+
+    const run = (error?: any) => {
+      if (error || index === chain.length) {
+        return next(error);
+      }
+      const middleware = chain[index++];
+      try {
+        const result = middleware(req, res, run) as unknown;
+        if (result instanceof Promise) {
+          result.catch(run);
+        }
+      } catch (caught) {
+        run(caught);
+      }
+    };
+
+    run();
+  };
+}
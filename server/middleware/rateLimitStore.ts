@@ -0,0 +1,416 @@
+/**
+ * Rate Limit Stores
+ *
+ * State backends for RateLimiter. Two kinds of per-key state are kept, each a
+ * single number, so memory per key is constant:
+ * - window counters, identified by key and window start (fixed and sliding
+ *   window limiters);
+ * - a theoretical arrival time (GCRA), which is the token bucket expressed
+ *   as one timestamp: a request is allowed while the TAT stays within the
+ *   burst allowance of now.
+ *
+ * - MemoryRateLimitStore: process-local; each replica enforces its own limit.
+ *   The key count is capped with LRU eviction, and expired keys are removed a
+ *   few at a time on each operation instead of by a periodic full sweep.
+ * - MongoRateLimitStore: state shared by all replicas through the rateLimits
+ *   collection. Hits are counted locally and flushed with a single bulkWrite
+ *   every RATE_LIMIT_SYNC_INTERVAL_MS, followed by one read of the global
+ *   values, so requests never wait on a database round trip. Between syncs a
+ *   replica sees the last global value plus its own hits, so a limit can be
+ *   overshot by at most the hits other replicas take within one sync interval.
+ *   While MongoDB is unreachable, syncs are retried with exponential backoff
+ *   (up to RATE_LIMIT_SYNC_MAX_BACKOFF_MS) and the failure is logged once,
+ *   along with the recovery.
+ *
+ * The backend is selected with RATE_LIMIT_STORE=memory|mongo.
+ */
+
+import { MongoBulkWriteError, type AnyBulkWriteOperation } from "mongodb";
+import { db } from "../db";
+
+const SYNC_INTERVAL_MS = parseInt(process.env.RATE_LIMIT_SYNC_INTERVAL_MS || "25", 10);
+const MAX_SYNC_BACKOFF_MS = parseInt(process.env.RATE_LIMIT_SYNC_MAX_BACKOFF_MS || "5000", 10);
+const MAX_KEYS = parseInt(process.env.RATE_LIMIT_MAX_KEYS || "100000", 10);
+// Entries checked for expiry per operation
+const EXPIRY_BATCH = 4;
+
+export interface RateLimitStore {
+  /**
+   * Add hits to the counter for key in the window starting at windowStart
+   * and resolve to the window's total. The counter is kept for ttlMs from
+   * the window start.
+   */
+  increment(key: string, windowStart: number, ttlMs: number, hits?: number): Promise<number>;
+
+  /**
+   * Current total for key in the window starting at windowStart.
+   */
+  get(key: string, windowStart: number): Promise<number>;
+
+  /**
+   * Token bucket: take one token for key if the key's theoretical arrival
+   * time, advanced by intervalMs, stays within burstMs of now. Resolves to
+   * whether it was taken and the resulting TAT.
+   */
+  takeToken(key: string, intervalMs: number, burstMs: number): Promise<{ allowed: boolean; tat: number }>;
+
+  /**
+   * What takeToken would return, without taking the token.
+   */
+  peekToken(key: string, intervalMs: number, burstMs: number): Promise<{ allowed: boolean; tat: number }>;
+
+  getStats(): RateLimitStoreStats;
+}
+
+export interface RateLimitStoreStats {
+  type: string;
+  keys: number;
+  healthy: boolean;
+  evictions?: number;
+  syncs?: number;
+  syncErrors?: number;
+  lastSyncAt?: string | null;
+}
+
+function counterId(key: string, windowStart: number): string {
+  return `${key}:${windowStart}`;
+}
+
+function bucketId(key: string): string {
+  return `${key}:tb`;
+}
+
+interface MemoryEntry {
+  value: number; // window count or TAT
+  expiresAt: number;
+}
+
+export class MemoryRateLimitStore implements RateLimitStore {
+  // Map iteration order doubles as recency order (least recently used first)
+  private entries = new Map<string, MemoryEntry>();
+  private evictions = 0;
+
+  constructor(private maxKeys = MAX_KEYS) {}
+
+  async increment(key: string, windowStart: number, ttlMs: number, hits = 1): Promise<number> {
+    const id = counterId(key, windowStart);
+    const entry = this.touch(id) ?? { value: 0, expiresAt: windowStart + ttlMs };
+    entry.value += hits;
+    this.put(id, entry);
+    return entry.value;
+  }
+
+  async get(key: string, windowStart: number): Promise<number> {
+    return this.touch(counterId(key, windowStart))?.value ?? 0;
+  }
+
+  async takeToken(key: string, intervalMs: number, burstMs: number): Promise<{ allowed: boolean; tat: number }> {
+    const result = await this.peekToken(key, intervalMs, burstMs);
+    if (result.allowed) {
+      this.put(bucketId(key), { value: result.tat, expiresAt: result.tat });
+    }
+    return result;
+  }
+
+  async peekToken(key: string, intervalMs: number, burstMs: number): Promise<{ allowed: boolean; tat: number }> {
+    const now = Date.now();
+    const entry = this.touch(bucketId(key));
+    const tat = Math.max(entry?.value ?? now, now) + intervalMs;
+
+    if (tat - now > burstMs) {
+      return { allowed: false, tat: entry?.value ?? now };
+    }
+    return { allowed: true, tat };
+  }
+
+  /**
+   * Live entry for id, marked as most recently used. Also expires a few of
+   * the least recently used entries.
+   */
+  private touch(id: string): MemoryEntry | undefined {
+    const now = Date.now();
+    this.expireSome(now);
+
+    const entry = this.entries.get(id);
+    if (!entry) return undefined;
+    this.entries.delete(id);
+    if (entry.expiresAt <= now) return undefined;
+    this.entries.set(id, entry);
+    return entry;
+  }
+
+  private put(id: string, entry: MemoryEntry) {
+    this.entries.delete(id);
+    this.entries.set(id, entry);
+    while (this.entries.size > this.maxKeys) {
+      const oldest = this.entries.keys().next().value as string;
+      this.entries.delete(oldest);
+      this.evictions++;
+    }
+  }
+
+  private expireSome(now: number) {
+    let checked = 0;
+    for (const [id, entry] of this.entries) {
+      if (checked++ >= EXPIRY_BATCH) break;
+      if (entry.expiresAt <= now) {
+        this.entries.delete(id);
+      }
+    }
+  }
+
+  getStats(): RateLimitStoreStats {
+    return { type: 'memory', keys: this.entries.size, healthy: true, evictions: this.evictions };
+  }
+}
+
+interface SharedEntry {
+  kind: 'counter' | 'bucket';
+  synced: number;   // global value (count or TAT) as of the last sync
+  inFlight: number; // local hits being written by the current sync
+  pending: number;  // local hits not yet written
+  intervalMs: number; // buckets: TAT advance per hit
+  burstMs: number;
+  expiresAt: number;
+}
+
+type SharedDocument = { _id: string; count?: number; tat?: number; expiresAt: Date };
+
+export class MongoRateLimitStore implements RateLimitStore {
+  private entries = new Map<string, SharedEntry>();
+  private syncTimer: NodeJS.Timeout | null = null;
+  private syncing = false;
+  private indexReady: Promise<void> | null = null;
+  private stats = {
+    syncs: 0,
+    syncErrors: 0,
+    lastSyncAt: null as Date | null,
+    lastSyncFailed: false,
+    consecutiveFailures: 0
+  };
+
+  constructor(private collectionName = 'rateLimits') {}
+
+  async increment(key: string, windowStart: number, ttlMs: number, hits = 1): Promise<number> {
+    const id = counterId(key, windowStart);
+    let entry = this.entries.get(id);
+    if (!entry) {
+      entry = { kind: 'counter', synced: 0, inFlight: 0, pending: 0, intervalMs: 0, burstMs: 0, expiresAt: windowStart + ttlMs };
+      this.entries.set(id, entry);
+    }
+    entry.pending += hits;
+    this.scheduleSync();
+    return entry.synced + entry.inFlight + entry.pending;
+  }
+
+  async get(key: string, windowStart: number): Promise<number> {
+    const entry = this.entries.get(counterId(key, windowStart));
+    return entry ? entry.synced + entry.inFlight + entry.pending : 0;
+  }
+
+  async takeToken(key: string, intervalMs: number, burstMs: number): Promise<{ allowed: boolean; tat: number }> {
+    const now = Date.now();
+    const id = bucketId(key);
+    let entry = this.entries.get(id);
+    if (!entry) {
+      entry = { kind: 'bucket', synced: now, inFlight: 0, pending: 0, intervalMs, burstMs, expiresAt: now + burstMs };
+      this.entries.set(id, entry);
+    }
+
+    const currentTat = Math.max(entry.synced, now) + (entry.inFlight + entry.pending) * intervalMs;
+    const tat = currentTat + intervalMs;
+    if (tat - now > burstMs) {
+      return { allowed: false, tat: currentTat };
+    }
+    entry.pending++;
+    entry.expiresAt = tat;
+    this.scheduleSync();
+    return { allowed: true, tat };
+  }
+
+  async peekToken(key: string, intervalMs: number, burstMs: number): Promise<{ allowed: boolean; tat: number }> {
+    const now = Date.now();
+    const entry = this.entries.get(bucketId(key));
+    const currentTat = entry
+      ? Math.max(entry.synced, now) + (entry.inFlight + entry.pending) * intervalMs
+      : now;
+    const tat = currentTat + intervalMs;
+    return tat - now > burstMs ? { allowed: false, tat: currentTat } : { allowed: true, tat };
+  }
+
+  private scheduleSync() {
+    if (this.syncTimer || this.syncing) return;
+    const delay = this.stats.consecutiveFailures > 0
+      ? Math.min(SYNC_INTERVAL_MS * 2 ** this.stats.consecutiveFailures, MAX_SYNC_BACKOFF_MS)
+      : SYNC_INTERVAL_MS;
+    this.syncTimer = setTimeout(() => {
+      this.syncTimer = null;
+      this.sync();
+    }, delay);
+    this.syncTimer.unref();
+  }
+
+  private ensureIndex(): Promise<void> {
+    if (!this.indexReady) {
+      this.indexReady = db.collection(this.collectionName)
+        .createIndex({ expiresAt: 1 }, { expireAfterSeconds: 0 })
+        .then(() => undefined)
+        .catch(error => {
+          this.indexReady = null;
+          throw error;
+        });
+    }
+    return this.indexReady;
+  }
+
+  private writeFor(id: string, entry: SharedEntry, now: number): AnyBulkWriteOperation<SharedDocument> {
+    if (entry.kind === 'counter') {
+      return {
+        updateOne: {
+          filter: { _id: id },
+          update: {
+            $inc: { count: entry.inFlight },
+            $setOnInsert: { expiresAt: new Date(entry.expiresAt) }
+          },
+          upsert: true
+        }
+      };
+    }
+
+    // GCRA: tat = max(tat, now) + hits * interval, computed server-side
+    return {
+      updateOne: {
+        filter: { _id: id },
+        update: [
+          { $set: { tat: { $add: [{ $max: [{ $ifNull: ['$tat', now] }, now] }, entry.inFlight * entry.intervalMs] } } },
+          { $set: { expiresAt: { $toDate: '$tat' } } }
+        ],
+        upsert: true
+      }
+    };
+  }
+
+  /**
+   * Fold hits that were written into the local view of the global value,
+   * for when the read-back that follows the write does not happen.
+   */
+  private applyWritten(entry: SharedEntry, now: number) {
+    if (entry.kind === 'counter') {
+      entry.synced += entry.inFlight;
+    } else {
+      entry.synced = Math.max(entry.synced, now) + entry.inFlight * entry.intervalMs;
+    }
+    entry.inFlight = 0;
+  }
+
+  /**
+   * Write all pending hits with one bulkWrite, then read back the global
+   * values of every key this replica is tracking.
+   */
+  private async sync() {
+    this.syncing = true;
+    const now = Date.now();
+    const operations: AnyBulkWriteOperation<SharedDocument>[] = [];
+    const written: SharedEntry[] = []; // entry for each operation, by index
+
+    for (const [id, entry] of this.entries.entries()) {
+      if (entry.expiresAt <= now && entry.pending === 0) {
+        this.entries.delete(id);
+        continue;
+      }
+      if (entry.pending > 0) {
+        entry.inFlight = entry.pending;
+        entry.pending = 0;
+        operations.push(this.writeFor(id, entry, now));
+        written.push(entry);
+      }
+    }
+
+    // Bound local state: idle keys are dropped first and re-read on next use
+    for (const [id, entry] of this.entries) {
+      if (this.entries.size <= MAX_KEYS) break;
+      if (entry.pending === 0 && entry.inFlight === 0) {
+        this.entries.delete(id);
+      }
+    }
+
+    try {
+      if (operations.length > 0) {
+        await this.ensureIndex();
+        const collection = db.collection<SharedDocument>(this.collectionName);
+        try {
+          await collection.bulkWrite(operations, { ordered: false });
+        } catch (error) {
+          // Unordered: every operation not listed in writeErrors was applied
+          if (error instanceof MongoBulkWriteError) {
+            const failed = new Set(([] as { index: number }[]).concat(error.writeErrors).map(writeError => writeError.index));
+            written.forEach((entry, index) => {
+              if (!failed.has(index)) this.applyWritten(entry, now);
+            });
+          }
+          throw error;
+        }
+        for (const entry of written) {
+          this.applyWritten(entry, now);
+        }
+
+        const ids = [...this.entries.keys()];
+        const docs = await collection
+          .find({ _id: { $in: ids } }, { projection: { count: 1, tat: 1 } })
+          .toArray();
+        const docsById = new Map(docs.map(doc => [doc._id, doc]));
+        for (const [id, entry] of this.entries.entries()) {
+          const doc = docsById.get(id);
+          entry.synced = (entry.kind === 'counter' ? doc?.count : doc?.tat) ?? entry.synced;
+        }
+      }
+      this.stats.syncs++;
+      this.stats.lastSyncAt = new Date();
+      if (this.stats.lastSyncFailed) {
+        console.log(`Rate limit sync recovered after ${this.stats.consecutiveFailures} failed attempts`);
+      }
+      this.stats.lastSyncFailed = false;
+      this.stats.consecutiveFailures = 0;
+    } catch (error) {
+      // Keep counting locally; hits not known to be written are retried with the next sync
+      for (const entry of written) {
+        entry.pending += entry.inFlight;
+        entry.inFlight = 0;
+      }
+      this.stats.syncErrors++;
+      this.stats.consecutiveFailures++;
+      if (!this.stats.lastSyncFailed) {
+        console.error('Rate limit sync failed, retrying with backoff:', error);
+      }
+      this.stats.lastSyncFailed = true;
+    } finally {
+      this.syncing = false;
+      for (const entry of this.entries.values()) {
+        if (entry.pending > 0) {
+          this.scheduleSync();
+          break;
+        }
+      }
+    }
+  }
+
+  getStats(): RateLimitStoreStats {
+    return {
+      type: 'mongo',
+      keys: this.entries.size,
+      healthy: !this.stats.lastSyncFailed,
+      syncs: this.stats.syncs,
+      syncErrors: this.stats.syncErrors,
+      lastSyncAt: this.stats.lastSyncAt?.toISOString() ?? null
+    };
+  }
+}
+
+export function createRateLimitStore(): RateLimitStore {
+  return process.env.RATE_LIMIT_STORE === 'mongo'
+    ? new MongoRateLimitStore()
+    : new MemoryRateLimitStore();
+}
+
+// Shared by all limiters; keys are namespaced by limiter name
+export const rateLimitStore = createRateLimitStore();
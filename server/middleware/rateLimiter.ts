@@ -3,142 +3,412 @@
  * 
  * Protects against DDoS attacks, brute force attempts, and ensures fair usage.
  * Implements multiple rate limiting strategies for different endpoints.
+ * Counters live in a pluggable store (see rateLimitStore.ts), so limits can be
+ * enforced across all replicas rather than per process.
  */
 
 import { Request, Response, NextFunction } from "express";
 import { auditLogger, AuditEventType } from "./audit";
+import { RateLimitStore, rateLimitStore } from "./rateLimitStore";
+import { rateLimitRejections, type CounterSeries } from "../metrics";
+import { storage } from "../storage";
+import { ObjectId } from "mongodb";
+
+// RATE_LIMITING=off disables every limiter (see pipeline.ts)
+export const RATE_LIMITING = process.env.RATE_LIMITING !== "off";
+// Introspection calls per second per authenticated client; bursts up to one second's worth
+const INTROSPECTION_RATE_LIMIT = parseInt(process.env.INTROSPECTION_RATE_LIMIT || "10000", 10);
+
+/**
+ * - fixed-window: at most maxRequests per aligned window. Allows up to twice
+ *   the limit across a window boundary.
+ * - sliding-window: the previous window's count, weighted by how much of it
+ *   still overlaps the trailing windowMs, plus the current window's count.
+ * - token-bucket: a bucket of maxRequests tokens refilled at maxRequests per
+ *   windowMs, so short bursts pass and sustained load is smoothed to the
+ *   average rate.
+ */
+export type RateLimitAlgorithm = 'fixed-window' | 'sliding-window' | 'token-bucket';
+
+/**
+ * Request attributes a limiter can key on. Each dimension has its own quota,
+ * and a request must be within every quota that applies to it: an office
+ * behind one NAT shares the ip quota without sharing a username quota, and
+ * credential stuffing spread over many IPs still hits the username quota.
+ */
+export type RateLimitDimension = 'ip' | 'client' | 'username' | 'tenant';
+
+const DIMENSIONS: RateLimitDimension[] = ['ip', 'username', 'client', 'tenant'];
+
+// Brute-force protection: tenant overrides may lower these quotas but never raise them
+const CAPPED_DIMENSIONS = new Set<RateLimitDimension>(['ip', 'username']);
+
+export type RateLimitKeys = Partial<Record<RateLimitDimension, string>>;
+export type RateLimitQuotas = Partial<Record<RateLimitDimension, number>>;
 
 interface RateLimitConfig {
+  name: string; // Namespace for this limiter's counters; also the key for tenant overrides
+  algorithm?: RateLimitAlgorithm; // Defaults to sliding-window
   windowMs: number;
-  maxRequests: number;
+  limits: RateLimitQuotas; // Requests per window for each dimension
   message: string;
   skipSuccessfulRequests?: boolean;
 }
 
-interface RateLimitEntry {
-  count: number;
+export interface RateLimitResult {
+  allowed: boolean;
+  limit: number;
+  remaining: number;
   resetTime: number;
+  dimension?: RateLimitDimension; // The quota that rejected, or the tightest one
 }
 
-class RateLimiter {
-  private store: Map<string, RateLimitEntry> = new Map();
-  
-  constructor(private config: RateLimitConfig) {}
+export class RateLimiter {
+  constructor(private config: RateLimitConfig, private store: RateLimitStore = rateLimitStore) {}
 
-  isAllowed(key: string): boolean {
-    const now = Date.now();
-    const entry = this.store.get(key);
-    
-    if (!entry || now > entry.resetTime) {
-      this.store.set(key, {
-        count: 1,
-        resetTime: now + this.config.windowMs
-      });
-      return true;
+  get name(): string {
+    return this.config.name;
+  }
+
+  get message(): string {
+    return this.config.message;
+  }
+
+  get algorithm(): RateLimitAlgorithm {
+    return this.config.algorithm ?? 'sliding-window';
+  }
+
+  /**
+   * Count one request against every dimension that has both a quota and a
+   * key. Every quota is checked first and the request is only counted when
+   * all of them allow it, so a request rejected on one dimension (say a
+   * locked username) does not use up the others (the shared IP or client).
+   * A token bucket drained by a concurrent request between the check and the
+   * count still rejects, after the dimensions before it were counted.
+   * Overrides replace the configured quotas, except that ip and username
+   * quotas can only be lowered.
+   */
+  async consume(keys: RateLimitKeys, overrides: RateLimitQuotas = {}): Promise<RateLimitResult> {
+    const allowed: { storeKey: string; result: RateLimitResult }[] = [];
+
+    for (const dimension of DIMENSIONS) {
+      const key = keys[dimension];
+      const configured = this.config.limits[dimension];
+      const override = overrides[dimension];
+      const limit = override !== undefined && configured && CAPPED_DIMENSIONS.has(dimension)
+        ? Math.min(override, configured)
+        : override ?? configured;
+      if (!key || !limit) continue;
+
+      const storeKey = `${this.config.name}:${dimension}:${key}`;
+      const result = await this.check(storeKey, limit);
+      result.dimension = dimension;
+      if (!result.allowed) {
+        return result;
+      }
+      allowed.push({ storeKey, result });
     }
-    
-    if (entry.count >= this.config.maxRequests) {
-      return false;
+
+    let tightest: RateLimitResult | null = null;
+    for (const { storeKey, result } of allowed) {
+      if (!(await this.count(storeKey, result.limit))) {
+        return { ...result, allowed: false, remaining: 0 };
+      }
+      if (!tightest || result.remaining < tightest.remaining) {
+        tightest = result;
+      }
     }
-    
-    entry.count++;
-    return true;
+
+    return tightest ?? { allowed: true, limit: 0, remaining: 0, resetTime: Date.now() };
   }
 
-  getRemainingRequests(key: string): number {
-    const entry = this.store.get(key);
-    if (!entry || Date.now() > entry.resetTime) {
-      return this.config.maxRequests;
+  /**
+   * Whether one more request fits the quota, without counting it.
+   */
+  private check(storeKey: string, maxRequests: number): Promise<RateLimitResult> {
+    switch (this.algorithm) {
+      case 'fixed-window':
+        return this.checkFixedWindow(storeKey, maxRequests);
+      case 'token-bucket':
+        return this.checkTokenBucket(storeKey, maxRequests);
+      default:
+        return this.checkSlidingWindow(storeKey, maxRequests);
     }
-    return Math.max(0, this.config.maxRequests - entry.count);
   }
 
-  getResetTime(key: string): number {
-    const entry = this.store.get(key);
-    if (!entry || Date.now() > entry.resetTime) {
-      return Date.now() + this.config.windowMs;
+  /**
+   * Count a request that check allowed. False if a token bucket ran dry in between.
+   */
+  private async count(storeKey: string, maxRequests: number): Promise<boolean> {
+    const { windowMs } = this.config;
+    const now = Date.now();
+    const windowStart = now - (now % windowMs);
+
+    switch (this.algorithm) {
+      case 'fixed-window':
+        await this.store.increment(storeKey, windowStart, windowMs);
+        return true;
+      case 'token-bucket':
+        return (await this.store.takeToken(storeKey, windowMs / maxRequests, windowMs)).allowed;
+      default:
+        // Counters are kept for two windows so they can serve as the previous window
+        await this.store.increment(storeKey, windowStart, 2 * windowMs);
+        return true;
     }
-    return entry.resetTime;
   }
 
-  // Cleanup expired entries periodically
-  cleanup() {
+  private async checkFixedWindow(storeKey: string, maxRequests: number): Promise<RateLimitResult> {
+    const { windowMs } = this.config;
     const now = Date.now();
-    for (const [key, entry] of this.store.entries()) {
-      if (now > entry.resetTime) {
-        this.store.delete(key);
-      }
+    const windowStart = now - (now % windowMs);
+    const resetTime = windowStart + windowMs;
+
+    const count = await this.store.get(storeKey, windowStart);
+    if (count >= maxRequests) {
+      return { allowed: false, limit: maxRequests, remaining: 0, resetTime };
+    }
+    return { allowed: true, limit: maxRequests, remaining: Math.max(0, maxRequests - count - 1), resetTime };
+  }
+
+  private async checkSlidingWindow(storeKey: string, maxRequests: number): Promise<RateLimitResult> {
+    const { windowMs } = this.config;
+    const now = Date.now();
+    const windowStart = now - (now % windowMs);
+    const previousWeight = 1 - (now - windowStart) / windowMs;
+
+    const [current, previous] = await Promise.all([
+      this.store.get(storeKey, windowStart),
+      this.store.get(storeKey, windowStart - windowMs)
+    ]);
+    const estimated = previous * previousWeight + current;
+    if (estimated + 1 > maxRequests) {
+      // The estimate drops below the limit once enough of the previous window has slid out
+      const resetTime = previous > 0
+        ? windowStart + Math.ceil(windowMs * (1 - (maxRequests - 1 - current) / previous))
+        : windowStart + windowMs;
+      return { allowed: false, limit: maxRequests, remaining: 0, resetTime: Math.min(resetTime, windowStart + windowMs) };
     }
+
+    return {
+      allowed: true,
+      limit: maxRequests,
+      remaining: Math.max(0, Math.floor(maxRequests - estimated - 1)),
+      resetTime: windowStart + windowMs
+    };
+  }
+
+  private async checkTokenBucket(storeKey: string, maxRequests: number): Promise<RateLimitResult> {
+    const { windowMs } = this.config;
+    const intervalMs = windowMs / maxRequests;
+    const burstMs = windowMs;
+    const now = Date.now();
+
+    const { allowed, tat } = await this.store.peekToken(storeKey, intervalMs, burstMs);
+    const remaining = Math.max(0, Math.floor((burstMs - (tat - now)) / intervalMs));
+    return {
+      allowed,
+      limit: maxRequests,
+      remaining,
+      // Next token for a rejected request; a full bucket for an allowed one
+      resetTime: allowed ? tat : tat + intervalMs - burstMs
+    };
   }
 }
 
 // Different rate limiters for different endpoints
 export const loginRateLimiter = new RateLimiter({
+  name: 'login',
+  algorithm: 'sliding-window',
   windowMs: 15 * 60 * 1000, // 15 minutes
-  maxRequests: 5, // 5 login attempts per 15 minutes
+  limits: {
+    username: 5, // 5 login attempts per account per 15 minutes, from any IP
+    ip: 20       // Several users behind one NAT may log in at once
+  },
   message: "Too many login attempts, please try again later"
 });
 
 export const oauthRateLimiter = new RateLimiter({
+  name: 'oauth',
+  algorithm: 'token-bucket',
   windowMs: 60 * 1000, // 1 minute
-  maxRequests: 30, // 30 OAuth requests per minute
+  limits: {
+    ip: 30,       // 30 OAuth requests per minute per IP
+    client: 600   // Confidential clients call the token endpoint from few IPs
+  },
   message: "Rate limit exceeded for OAuth operations"
 });
 
+// Resource servers and gateways introspect on every request they serve, often
+// from a handful of IPs, so this is keyed on the authenticated client only
+// and applied by the introspection handlers once the client is verified.
+export const introspectionRateLimiter = new RateLimiter({
+  name: 'introspection',
+  algorithm: 'token-bucket',
+  windowMs: 1000, // 1 second
+  limits: {
+    client: INTROSPECTION_RATE_LIMIT
+  },
+  message: "Rate limit exceeded for token introspection"
+});
+
 export const generalRateLimiter = new RateLimiter({
+  name: 'general',
+  algorithm: 'sliding-window',
   windowMs: 60 * 1000, // 1 minute
-  maxRequests: 100, // 100 general requests per minute
+  limits: {
+    ip: 100, // 100 general requests per minute
+    tenant: 10000
+  },
   message: "Rate limit exceeded"
 });
 
 export const adminRateLimiter = new RateLimiter({
+  name: 'admin',
+  algorithm: 'sliding-window',
   windowMs: 60 * 1000, // 1 minute
-  maxRequests: 60, // 60 admin requests per minute
+  limits: {
+    ip: 60 // 60 admin requests per minute
+  },
   message: "Rate limit exceeded for admin operations"
 });
 
+/**
+ * Values for each dimension. Reads the parsed body, so the limiter must run
+ * after the body parsers. The tenant is the logged-in user's: the domain
+ * attachTenant resolves comes from the host, a header or the query string,
+ * all chosen by the caller, so it must not pick whose quota is charged.
+ */
+function rateLimitKeysFor(req: Request): RateLimitKeys {
+  let clientId: string | undefined = req.body?.client_id || (req.query.client_id as string | undefined);
+  const authHeader = req.headers.authorization;
+  if (!clientId && authHeader && authHeader.startsWith('Basic ')) {
+    const credentials = Buffer.from(authHeader.slice('Basic '.length), 'base64').toString('utf8');
+    clientId = credentials.split(':')[0];
+  }
+
+  const username = typeof req.body?.username === 'string'
+    ? req.body.username.toLowerCase()
+    : undefined;
+
+  return {
+    ip: req.ip || req.connection.remoteAddress || 'unknown',
+    client: typeof clientId === 'string' ? clientId : undefined,
+    username,
+    tenant: req.user?.tenantId
+  };
+}
+
+/**
+ * Per-tenant quotas for the caller's own tenant, e.g. settings.rateLimits =
+ * { oauth: { tenant: 20000 } }. Read through the tenant cache.
+ */
+async function quotaOverridesFor(req: Request, tenantId: string | undefined, limiter: RateLimiter): Promise<RateLimitQuotas> {
+  // Super admins belong to the "system" pseudo-tenant, which has no record
+  if (!tenantId || !ObjectId.isValid(tenantId)) {
+    return {};
+  }
+  const tenant = req.tenant && req.tenantId === tenantId ? req.tenant : await storage.getTenant(tenantId);
+  return tenant?.settings?.rateLimits?.[limiter.name] ?? {};
+}
+
+function rejectionSeries(limiter: RateLimiter): Record<RateLimitDimension, CounterSeries> {
+  return Object.fromEntries(
+    DIMENSIONS.map(dimension => [dimension, rateLimitRejections.labels(limiter.name, dimension)])
+  ) as Record<RateLimitDimension, CounterSeries>;
+}
+
+/**
+ * Send the outcome of a consume: the 429 (counted and audited) when it was
+ * rejected, otherwise the X-RateLimit headers. True if the request may go on.
+ */
+function applyResult(
+  limiter: RateLimiter,
+  rejections: Record<RateLimitDimension, CounterSeries>,
+  req: Request,
+  res: Response,
+  keys: RateLimitKeys,
+  result: RateLimitResult
+): boolean {
+  if (!result.allowed) {
+    rejections[result.dimension!]?.inc();
+
+    // Log rate limit violation
+    auditLogger.log({
+      eventType: AuditEventType.SECURITY_EVENT,
+      tenantId: keys.tenant,
+      userId: req.user?._id?.toString(),
+      clientId: keys.client,
+      ipAddress: req.ip || req.connection.remoteAddress || 'unknown',
+      userAgent: req.get('User-Agent') || 'unknown',
+      method: req.method,
+      url: req.originalUrl,
+      statusCode: 429,
+      correlationId: (req as any).correlationId || 'no-correlation',
+      details: {
+        reason: 'rate_limit_exceeded',
+        rateLimitType: limiter.name,
+        dimension: result.dimension
+      }
+    });
+
+    res.status(429).json({
+      error: 'Rate limit exceeded',
+      message: limiter.message || 'Too many requests',
+      retryAfter: Math.ceil((result.resetTime - Date.now()) / 1000)
+    });
+    return false;
+  }
+
+  // Add rate limit headers for the tightest applicable quota
+  res.setHeader('X-RateLimit-Limit', result.limit);
+  res.setHeader('X-RateLimit-Remaining', result.remaining);
+  res.setHeader('X-RateLimit-Reset', Math.ceil(result.resetTime / 1000));
+  return true;
+}
+
 export function createRateLimitMiddleware(limiter: RateLimiter) {
-  return (req: Request, res: Response, next: NextFunction) => {
-    const key = req.ip || req.connection.remoteAddress || 'unknown';
+  const rejections = rejectionSeries(limiter);
+
+  return async (req: Request, res: Response, next: NextFunction) => {
+    const keys = rateLimitKeysFor(req);
     
-    if (!limiter.isAllowed(key)) {
-      // Log rate limit violation
-      auditLogger.log({
-        eventType: AuditEventType.SECURITY_EVENT,
-        userId: (req as any).user?.id,
-        ipAddress: key,
-        userAgent: req.get('User-Agent') || 'unknown',
-        method: req.method,
-        url: req.originalUrl,
-        statusCode: 429,
-        correlationId: (req as any).correlationId || 'no-correlation',
-        details: {
-          reason: 'rate_limit_exceeded',
-          rateLimitType: 'general'
-        }
-      });
-
-      res.status(429).json({
-        error: 'Rate limit exceeded',
-        message: limiter.message || 'Too many requests',
-        retryAfter: Math.ceil((limiter.getResetTime(key) - Date.now()) / 1000)
-      });
-      return;
+    let result: RateLimitResult;
+    try {
+      result = await limiter.consume(keys, await quotaOverridesFor(req, keys.tenant, limiter));
+    } catch (error) {
+      // Fail open: an unavailable counter store must not take the service down
+      console.error('Rate limit check failed:', error);
+      return next();
     }
-
-    // Add rate limit headers
-    res.setHeader('X-RateLimit-Limit', limiter.maxRequests);
-    res.setHeader('X-RateLimit-Remaining', limiter.getRemainingRequests(key));
-    res.setHeader('X-RateLimit-Reset', Math.ceil(limiter.getResetTime(key) / 1000));
     
-    next();
+    if (applyResult(limiter, rejections, req, res, keys, result)) {
+      next();
+    }
   };
 }
 
-// Cleanup expired entries every 5 minutes
-setInterval(() => {
-  loginRateLimiter.cleanup();
-  oauthRateLimiter.cleanup();
-  generalRateLimiter.cleanup();
-  adminRateLimiter.cleanup();
-}, 5 * 60 * 1000);
\ No newline at end of file
+/**
+ * Rate limit by an already authenticated client, for handlers that can only
+ * tell who is calling once the client's credentials are checked. Resolves to
+ * false after sending the 429; always true with RATE_LIMITING=off.
+ */
+export function createClientRateLimiter(limiter: RateLimiter) {
+  const rejections = rejectionSeries(limiter);
+
+  return async (req: Request, res: Response, clientId: string): Promise<boolean> => {
+    if (!RATE_LIMITING) {
+      return true;
+    }
+
+    const keys: RateLimitKeys = { client: clientId };
+    let result: RateLimitResult;
+    try {
+      result = await limiter.consume(keys);
+    } catch (error) {
+      // Fail open, as createRateLimitMiddleware does
+      console.error('Rate limit check failed:', error);
+      return true;
+    }
+    return applyResult(limiter, rejections, req, res, keys, result);
+  };
+}
@@ -7,6 +7,7 @@
 
 import { Request, Response, NextFunction } from "express";
 import { auditLogger, AuditEventType } from "./audit";
+import { threatScannerFor } from "./threatScanner";
 
 /**
  * Security Headers Middleware
@@ -72,40 +73,32 @@ export function enterpriseCors(req: Request, res: Response, next: NextFunction)
 
 /**
  * Security Monitoring
- * Detects and logs suspicious activities
+ * Detects and logs suspicious activities (see threatScanner.ts)
  */
 export function securityMonitoring(req: Request, res: Response, next: NextFunction) {
-  const suspiciousPatterns = [
-    /\.\./,  // Directory traversal
-    /<script/i,  // XSS attempts
-    /union.*select/i,  // SQL injection
-    /eval\(/i,  // Code injection
-  ];
-  
-  const userAgent = req.get('User-Agent') || '';
-  const suspicious = suspiciousPatterns.some(pattern => 
-    pattern.test(req.url) || 
-    pattern.test(JSON.stringify(req.body)) ||
-    pattern.test(userAgent)
-  );
+  const scanner = threatScannerFor(req);
+  if (!scanner) {
+    return next();
+  }
+
+  const patternsMatched = scanner.scanRequest(req);
   
-  if (suspicious) {
+  if (patternsMatched.length > 0) {
     auditLogger.log({
       eventType: AuditEventType.SECURITY_EVENT,
-      userId: (req as any).user?.id,
+      tenantId: req.tenantId || req.user?.tenantId,
+      userId: req.user?._id?.toString(),
       ipAddress: req.ip || req.connection.remoteAddress || 'unknown',
-      userAgent,
+      userAgent: req.get('User-Agent') || '',
       method: req.method,
       url: req.originalUrl,
       correlationId: (req as any).correlationId || 'no-correlation',
       details: {
         reason: 'suspicious_request',
-        patterns_matched: suspiciousPatterns.filter(p => 
-          p.test(req.url) || p.test(JSON.stringify(req.body)) || p.test(userAgent)
-        ).map(p => p.toString())
+        patterns_matched: patternsMatched
       }
     });
   }
   
   next();
-}
\ No newline at end of file
+}
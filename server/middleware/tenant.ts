@@ -11,42 +11,51 @@ declare global {
 }
 
 /**
- * Tenant Resolution Middleware
- * 
- * Resolves the current tenant context from various sources:
+ * Tenant domain named by the request, if any. Checked in order:
  * 1. Subdomain (tenant.yourdomain.com)
  * 2. X-Tenant-Domain header
  * 3. Query parameter (?tenant=domain)
  * 4. Path parameter (/tenant/domain/...)
  */
-export async function resolveTenant(req: Request, res: Response, next: NextFunction) {
-  let tenantDomain: string | null = null;
-
+function tenantDomainFor(req: Request): string | null {
   // Strategy 1: Subdomain resolution
   const host = req.headers.host || '';
   const subdomain = host.split('.')[0];
   if (subdomain && subdomain !== 'localhost' && subdomain !== '127' && !subdomain.includes(':')) {
-    tenantDomain = subdomain;
+    return subdomain;
   }
 
   // Strategy 2: Header-based resolution
-  if (!tenantDomain && req.headers['x-tenant-domain']) {
-    tenantDomain = req.headers['x-tenant-domain'] as string;
+  if (req.headers['x-tenant-domain']) {
+    return req.headers['x-tenant-domain'] as string;
   }
 
   // Strategy 3: Query parameter resolution
-  if (!tenantDomain && req.query.tenant) {
-    tenantDomain = req.query.tenant as string;
+  if (req.query.tenant) {
+    return req.query.tenant as string;
   }
 
   // Strategy 4: Path-based resolution (/tenant/:domain/...)
-  if (!tenantDomain && req.path.startsWith('/tenant/')) {
+  if (req.path.startsWith('/tenant/')) {
     const pathParts = req.path.split('/');
     if (pathParts.length >= 3) {
-      tenantDomain = pathParts[2];
+      return pathParts[2];
     }
   }
 
+  return null;
+}
+
+/**
+ * Tenant Resolution Middleware
+ * 
+ * Resolves the current tenant context from the subdomain, X-Tenant-Domain
+ * header, ?tenant= query parameter or /tenant/:domain path. Responds 404
+ * when a domain is named but no such tenant exists.
+ */
+export async function resolveTenant(req: Request, res: Response, next: NextFunction) {
+  const tenantDomain = tenantDomainFor(req);
+
   // If we found a tenant domain, resolve the tenant
   if (tenantDomain) {
     try {
@@ -70,6 +79,32 @@ export async function resolveTenant(req: Request, res: Response, next: NextFunct
   next();
 }
 
+/**
+ * Attach Tenant Middleware
+ *
+ * Best-effort variant of resolveTenant for the middleware pipeline: the
+ * tenant is attached when the request names a known one, and the request
+ * continues without a tenant otherwise, so hosts that are not tenant
+ * subdomains keep working. Threat scanning reads the tenant's settings
+ * from it. The caller picks the tenant here, so rate limits do not: they are
+ * charged to the logged-in user's tenant (see rateLimiter.ts).
+ */
+export async function attachTenant(req: Request, res: Response, next: NextFunction) {
+  const tenantDomain = req.tenant ? null : tenantDomainFor(req);
+  if (tenantDomain) {
+    try {
+      const tenant = await storage.getTenantByDomain(tenantDomain);
+      if (tenant) {
+        req.tenant = tenant;
+        req.tenantId = tenant._id.toString();
+      }
+    } catch (error) {
+      console.error('Error resolving tenant:', error);
+    }
+  }
+  next();
+}
+
 /**
  * Require Tenant Middleware
  * 
@@ -0,0 +1,212 @@
+/**
+ * Request Threat Scanner
+ *
+ * Matches requests against the suspicious-input patterns used by
+ * securityMonitoring. All patterns are compiled into one case-insensitive
+ * alternation, so an input with no match is scanned in a single
+ * left-to-right pass however many patterns there are, and a match reports
+ * which pattern hit. An alternation only reports one pattern per position, so
+ * after each hit the scan resumes at the hit's start with the patterns not yet
+ * found: overlapping matches (".." inside "union ../x select") are reported as
+ * if each pattern had been tested on its own, and each input is passed over at
+ * most once per reported pattern.
+ *
+ * Bodies are scanned from the raw request bytes captured by the body parsers
+ * (see captureRawBody) instead of re-serializing req.body, and only the first
+ * THREAT_SCAN_MAX_BODY_BYTES are inspected. JSON string escapes (\u003c,
+ * \/) are decoded first so escaped payloads match like literal ones, as
+ * urlencoded bodies are unescaped. Patterns must not be able to run past a
+ * bounded distance (no unbounded .*), which keeps the scan linear.
+ *
+ * Tenants can disable patterns, add literal keywords or change the body cap
+ * through settings.threatScanning; each distinct configuration is compiled
+ * once and reused for as long as the tenant record is cached.
+ */
+
+import type { Request } from "express";
+import type { IncomingMessage, ServerResponse } from "http";
+import querystring from "querystring";
+
+const MAX_BODY_BYTES = parseInt(process.env.THREAT_SCAN_MAX_BODY_BYTES || "16384", 10);
+
+declare global {
+  namespace Express {
+    interface Request {
+      rawBody?: Buffer;
+    }
+  }
+}
+
+export interface ThreatPattern {
+  name: string;
+  source: string; // Regular expression without capturing groups, matched case-insensitively
+}
+
+export const defaultThreatPatterns: ThreatPattern[] = [
+  { name: 'directory_traversal', source: '\\.\\.' },
+  { name: 'xss', source: '<script' },
+  { name: 'sql_injection', source: 'union.{0,64}select' },
+  { name: 'code_injection', source: 'eval\\(' }
+];
+
+export interface ThreatScanningSettings {
+  enabled?: boolean;
+  maxBodyBytes?: number;
+  disabledPatterns?: string[];
+  keywords?: string[]; // Literal strings, matched case-insensitively
+}
+
+function escapeRegExp(literal: string): string {
+  return literal.replace(/[.*+?^${}()|[\]\\]/g, '\\$&');
+}
+
+const JSON_ESCAPE = /\\(?:u([0-9a-fA-F]{4})|(["\\/bfnrt]))/g;
+const JSON_SIMPLE_ESCAPES: Record<string, string> = {
+  '"': '"', '\\': '\\', '/': '/', b: '\b', f: '\f', n: '\n', r: '\r', t: '\t'
+};
+
+/**
+ * Decode JSON string escapes in raw JSON text. Works on a truncated body, and
+ * leaves anything that is not a valid escape as it is.
+ */
+function unescapeJson(text: string): string {
+  if (!text.includes('\\')) return text;
+  return text.replace(JSON_ESCAPE, (_escape, hex: string | undefined, simple: string | undefined) =>
+    hex !== undefined ? String.fromCharCode(parseInt(hex, 16)) : JSON_SIMPLE_ESCAPES[simple!]
+  );
+}
+
+// Compiled alternations kept per scanner, one per set of patterns still searched for
+const MAX_MATCHERS = 64;
+
+export class ThreatScanner {
+  private names: string[];
+  private sources: string[];
+  private allPatterns: number[];
+  private matchers = new Map<string, RegExp>();
+
+  constructor(patterns: ThreatPattern[], readonly maxBodyBytes = MAX_BODY_BYTES) {
+    this.names = patterns.map(pattern => pattern.name);
+    this.sources = patterns.map(pattern => pattern.source);
+    this.allPatterns = patterns.map((_pattern, index) => index);
+    if (patterns.length > 0) {
+      this.matcherFor(this.allPatterns);
+    }
+  }
+
+  /**
+   * Alternation of the given patterns, one capture group each, in order; the
+   * group that matched identifies the pattern.
+   */
+  private matcherFor(patterns: number[]): RegExp {
+    const key = patterns.join(',');
+    let matcher = this.matchers.get(key);
+    if (!matcher) {
+      if (this.matchers.size >= MAX_MATCHERS) {
+        this.matchers.clear();
+      }
+      matcher = new RegExp(patterns.map(index => `(${this.sources[index]})`).join('|'), 'gi');
+      this.matchers.set(key, matcher);
+    }
+    return matcher;
+  }
+
+  get patternCount(): number {
+    return this.names.length;
+  }
+
+  /**
+   * Names of the patterns that occur in any of the inputs.
+   */
+  scan(inputs: string[]): string[] {
+    const matched: string[] = [];
+    let remaining = this.allPatterns;
+
+    for (const input of inputs) {
+      if (!input) continue;
+      let position = 0;
+      while (remaining.length > 0) {
+        const matcher = this.matcherFor(remaining);
+        matcher.lastIndex = position;
+        const match = matcher.exec(input);
+        if (!match) break;
+
+        let found = remaining[0];
+        for (let group = 1; group < match.length; group++) {
+          if (match[group] !== undefined) {
+            found = remaining[group - 1];
+            break;
+          }
+        }
+        matched.push(this.names[found]);
+        remaining = remaining.filter(index => index !== found);
+        // Other patterns may match at this position or inside this match
+        position = match.index;
+      }
+      if (remaining.length === 0) break;
+    }
+    return matched;
+  }
+
+  /**
+   * Names of the patterns found in the request URL, User-Agent or body.
+   */
+  scanRequest(req: Request): string[] {
+    return this.scan([req.url, req.get('User-Agent') || '', this.bodyText(req)]);
+  }
+
+  private bodyText(req: Request): string {
+    if (req.rawBody) {
+      // latin1 maps each byte to one character, so the cap is exact and cheap
+      const text = req.rawBody.toString('latin1', 0, Math.min(req.rawBody.length, this.maxBodyBytes));
+      if (req.is('application/x-www-form-urlencoded')) {
+        return querystring.unescape(text);
+      }
+      return req.is('json') ? unescapeJson(text) : text;
+    }
+    if (req.body && typeof req.body === 'object' && Object.keys(req.body).length > 0) {
+      // Parsed by something that did not capture the raw bytes
+      return JSON.stringify(req.body).slice(0, this.maxBodyBytes);
+    }
+    return '';
+  }
+}
+
+export const defaultThreatScanner = new ThreatScanner(defaultThreatPatterns);
+
+// Compiled scanners per tenant configuration; entries go away with the tenant record
+const tenantScanners = new WeakMap<ThreatScanningSettings, ThreatScanner | null>();
+
+/**
+ * Scanner for the request's tenant, or null if the tenant disabled scanning.
+ */
+export function threatScannerFor(req: Request): ThreatScanner | null {
+  const settings: ThreatScanningSettings | undefined = req.tenant?.settings?.threatScanning;
+  if (!settings) {
+    return defaultThreatScanner;
+  }
+
+  let scanner = tenantScanners.get(settings);
+  if (scanner === undefined) {
+    if (settings.enabled === false) {
+      scanner = null;
+    } else {
+      const disabled = new Set(settings.disabledPatterns ?? []);
+      const patterns = defaultThreatPatterns.filter(pattern => !disabled.has(pattern.name));
+      for (const keyword of settings.keywords ?? []) {
+        patterns.push({ name: `keyword:${keyword}`, source: escapeRegExp(keyword) });
+      }
+      scanner = new ThreatScanner(patterns, settings.maxBodyBytes ?? MAX_BODY_BYTES);
+    }
+    tenantScanners.set(settings, scanner);
+  }
+  return scanner;
+}
+
+/**
+ * verify callback for express.json and express.urlencoded: keeps a reference
+ * to the raw body (no copy) for the threat scanner.
+ */
+export function captureRawBody(req: IncomingMessage, _res: ServerResponse, buf: Buffer) {
+  (req as Request).rawBody = buf;
+}
@@ -0,0 +1,134 @@
+/**
+ * Data Migrations
+ *
+ * One-off, idempotent data migrations run at startup. Each migration records
+ * itself in the migrations collection once it has completed, so it runs at
+ * most once per database; a migration interrupted part-way is simply resumed
+ * on the next start.
+ */
+
+import type { AnyBulkWriteOperation, Document } from "mongodb";
+import { db } from "./db";
+import { accessTokenId, tokenDigest } from "./tokenIds";
+import { hashClientSecret } from "./clientSecrets";
+
+const BATCH_SIZE = 500;
+
+interface Migration {
+  name: string;
+  run(): Promise<void>;
+}
+
+async function rewriteInBatches(
+  collectionName: string,
+  filter: Document,
+  rewrite: (doc: Document) => AnyBulkWriteOperation<Document>
+) {
+  const collection = db.collection(collectionName);
+  let batch: AnyBulkWriteOperation<Document>[] = [];
+
+  for await (const doc of collection.find(filter)) {
+    batch.push(rewrite(doc));
+    if (batch.length >= BATCH_SIZE) {
+      await collection.bulkWrite(batch, { ordered: false });
+      batch = [];
+    }
+  }
+  if (batch.length > 0) {
+    await collection.bulkWrite(batch, { ordered: false });
+  }
+}
+
+async function dropIndexIfExists(collectionName: string, indexName: string) {
+  try {
+    await db.collection(collectionName).dropIndex(indexName);
+  } catch (error) {
+    // Index or collection does not exist - nothing to drop
+  }
+}
+
+const migrations: Migration[] = [
+  {
+    // Key tokens and revocations by jti / SHA-256 digest instead of the full token string
+    name: "2026-10-token-ids",
+    async run() {
+      await rewriteInBatches(
+        'tokens',
+        { accessToken: { $exists: true } },
+        (doc) => ({
+          updateOne: {
+            filter: { _id: doc._id },
+            update: {
+              $set: { jti: accessTokenId(doc.accessToken) },
+              $unset: { accessToken: "" }
+            }
+          }
+        })
+      );
+
+      await rewriteInBatches(
+        'revokedTokens',
+        { token: { $exists: true } },
+        (doc) => ({
+          updateOne: {
+            filter: { _id: doc._id },
+            update: {
+              $set: {
+                tokenId: doc.type === 'access_token' ? accessTokenId(doc.token) : tokenDigest(doc.token)
+              },
+              $unset: { token: "" }
+            }
+          }
+        })
+      );
+
+      await dropIndexIfExists('tokens', 'accessToken_1');
+      await dropIndexIfExists('revokedTokens', 'token_1_type_1');
+    }
+  },
+  {
+    // Replace plaintext client secrets with their keyed hash
+    name: "2026-10-client-secret-hashes",
+    async run() {
+      await rewriteInBatches(
+        'clients',
+        { clientSecret: { $exists: true } },
+        (doc) => ({
+          updateOne: {
+            filter: { _id: doc._id, clientSecret: doc.clientSecret },
+            update: {
+              $set: { clientSecretHash: hashClientSecret(doc.clientSecret) },
+              $unset: { clientSecret: "" }
+            }
+          }
+        })
+      );
+    }
+  },
+  {
+    // Usernames are unique per tenant. Older deployments also carry the global
+    // username_1 unique index from mongo-init.js, which would keep them unique
+    // across tenants. The replacement is created first, so uniqueness is never
+    // unenforced, even with INDEX_BOOTSTRAP off.
+    name: "2026-10-username-per-tenant",
+    async run() {
+      await db.collection('users').createIndex({ username: 1, tenantId: 1 }, { unique: true });
+      await dropIndexIfExists('users', 'username_1');
+    }
+  }
+];
+
+export async function runMigrations() {
+  const applied = db.collection<{ _id: string; appliedAt: Date }>('migrations');
+
+  for (const migration of migrations) {
+    if (await applied.findOne({ _id: migration.name })) {
+      continue;
+    }
+
+    console.log(`Running migration ${migration.name}...`);
+    await migration.run();
+    await applied.insertOne({ _id: migration.name, appliedAt: new Date() });
+    console.log(`Migration ${migration.name} completed`);
+  }
+}
@@ -16,7 +16,7 @@
  * - PKCE support for enhanced security
  * 
  * Security Features:
- * - JWT access tokens with RS256 signing
+ * - JWT access tokens signed with RS256, ES256 or EdDSA (per tenant)
  * - Secure authorization code generation
  * - Client authentication validation
  * - CSRF protection via state parameter
@@ -26,13 +26,17 @@
  * @version 1.0.0
  */
 
-import { Express } from "express";
+import { Express, Request } from "express";
 import { storage } from "./storage";
 import { z } from "zod";
-import { jwtService } from "./jwt";
+import { jwtService, SigningAlgorithm } from "./jwt";
+import { accessTokenId } from "./tokenIds";
+import { verifyClientSecret } from "./clientSecrets";
+import { createClientRateLimiter, introspectionRateLimiter } from "./middleware/rateLimiter";
 import crypto from "crypto";
 import { SessionData } from "express-session";
-import { filterUserByScopes, getAllowedAttributes } from "@shared/schema";
+import { filterUserByScopes, getAllowedAttributes, Client, Token } from "@shared/schema";
+import { ObjectId } from "mongodb";
 
 // Extend the Express Session type to support OAuth flow state management
 declare module "express-session" {
@@ -77,12 +81,154 @@ function validateScopes(requestedScopes: string[] | undefined, allowedScopes: st
   return requestedScopes.filter(scope => allowedScopes.includes(scope));
 }
 
+// How long resource servers may cache the JWKS before revalidating
+const JWKS_MAX_AGE_SECONDS = parseInt(process.env.JWKS_MAX_AGE_SECONDS || "300", 10);
+
+/**
+ * Signing algorithm for tokens issued to a client, from its tenant's settings.
+ * Skips the tenant lookup entirely when only one algorithm is enabled.
+ */
+async function signingAlgorithmFor(tenantId: string | undefined): Promise<SigningAlgorithm> {
+  if (jwtService.getSupportedAlgorithms().length === 1 || !tenantId || !ObjectId.isValid(tenantId)) {
+    return jwtService.resolveAlgorithm();
+  }
+  const tenant = await storage.getTenant(tenantId);
+  return jwtService.resolveAlgorithm(tenant?.settings?.signingAlgorithm);
+}
+
+/**
+ * Introspection mode for access tokens:
+ * - strict: after the signature and expiry checks, revocation is confirmed
+ *   against MongoDB, so a revocation is visible on every node immediately.
+ * - fast: answered from the signature, expiry and the in-memory revocation
+ *   list only, with no database round trip. A revocation made on another node
+ *   becomes visible once the revocation change stream (or poll) delivers it.
+ * Refresh tokens are opaque and always looked up in the tokens collection.
+ */
+const INTROSPECTION_MODE = process.env.INTROSPECTION_MODE === 'fast' ? 'fast' : 'strict';
+
+const introspectionStats = {
+  fast: 0,     // access tokens answered without a database read
+  strict: 0,   // access tokens confirmed against revokedTokens
+  refresh: 0,  // refresh tokens looked up in tokens
+  inactive: 0
+};
+
+export function getIntrospectionStats() {
+  return { mode: INTROSPECTION_MODE, ...introspectionStats };
+}
+
+const ISSUER = process.env.BASE_URL || 'http://localhost:5000';
+
+/**
+ * Verify an access token for introspection. Returns the claims, or null if
+ * the token is not an active access token.
+ */
+async function introspectAccessToken(token: string): Promise<any | null> {
+  let payload: any;
+  try {
+    payload = await jwtService.verifyToken(token);
+  } catch (error) {
+    return null;
+  }
+
+  if (INTROSPECTION_MODE === 'strict') {
+    introspectionStats.strict++;
+    if (await storage.isAccessTokenRevoked(accessTokenId(token, payload))) {
+      return null;
+    }
+  } else {
+    introspectionStats.fast++;
+  }
+  return payload;
+}
+
+// RFC 7662 responses, including the standard claims
+function accessTokenIntrospection(tokenInfo: any) {
+  return {
+    active: true,
+    client_id: tokenInfo.client_id,
+    username: tokenInfo.sub,
+    scope: Array.isArray(tokenInfo.scope) ? tokenInfo.scope.join(' ') : tokenInfo.scope,
+    sub: tokenInfo.sub,
+    aud: tokenInfo.client_id,
+    iss: ISSUER,
+    exp: tokenInfo.exp,
+    iat: tokenInfo.iat,
+    token_type: "access_token"
+  };
+}
+
+function refreshTokenIntrospection(token: Token) {
+  return {
+    active: true,
+    client_id: token.clientId,
+    username: token.userId,
+    scope: Array.isArray(token.scope) ? token.scope.join(' ') : token.scope,
+    sub: token.userId,
+    aud: token.clientId,
+    iss: ISSUER,
+    // Convert token expiration to epoch time
+    exp: Math.floor(token.expiresAt.getTime() / 1000),
+    token_type: "refresh_token"
+  };
+}
+
+/**
+ * Client authentication for the introspection and revocation endpoints:
+ * HTTP Basic, or client_id/client_secret in the body. Returns the client, or
+ * the error description to send with a 401.
+ */
+async function authenticateClient(req: Request): Promise<{ client: Client } | { error: string }> {
+  // Extract client authentication from Basic Auth header
+  const authHeader = req.headers.authorization;
+  let clientId: string | undefined;
+  let clientSecret: string | undefined;
+
+  if (authHeader && authHeader.startsWith('Basic ')) {
+    const base64Credentials = authHeader.slice('Basic '.length);
+    const credentials = Buffer.from(base64Credentials, 'base64').toString('utf8');
+    const [id, secret] = credentials.split(':');
+    clientId = id;
+    clientSecret = secret;
+  } else {
+    // Allow client credentials in request body as well (less secure, but allowed by spec)
+    clientId = req.body.client_id;
+    clientSecret = req.body.client_secret;
+  }
+
+  if (!clientId || !clientSecret) {
+    return { error: "Client authentication required" };
+  }
+
+  const client = await storage.getClientByClientId(clientId);
+  if (!client || !(await verifyClientSecret(client, clientSecret))) {
+    return { error: "Invalid client credentials" };
+  }
+  return { client };
+}
+
+// Per-client introspection quota, checked once the client is authenticated
+const limitIntrospection = createClientRateLimiter(introspectionRateLimiter);
+
+// Maximum number of tokens accepted by one batch introspection request
+const INTROSPECTION_BATCH_MAX = parseInt(process.env.INTROSPECTION_BATCH_MAX || "100", 10);
+
 // Schema for token introspection requests
 const introspectionSchema = z.object({
   token: z.string(),
   token_type_hint: z.enum(["access_token", "refresh_token"]).optional(),
 });
 
+// Schema for batch introspection requests: plain tokens, or tokens with a hint
+const batchIntrospectionSchema = z.object({
+  tokens: z.array(z.union([
+    z.string(),
+    introspectionSchema
+  ])).min(1).max(INTROSPECTION_BATCH_MAX),
+  token_type_hint: z.enum(["access_token", "refresh_token"]).optional(),
+});
+
 // Schema for token revocation requests
 const revocationSchema = z.object({
   token: z.string(),
@@ -112,7 +258,7 @@ export function setupOAuth(app: Express) {
       ],
       scopes_supported: ["read", "write", "admin"],
       claims_supported: ["sub", "iss", "exp", "iat", "client_id", "scope"],
-      id_token_signing_alg_values_supported: ["RS256"],
+      id_token_signing_alg_values_supported: jwtService.getSupportedAlgorithms(),
       service_documentation: `${baseUrl}/docs`,
       ui_locales_supported: ["en-US"],
       op_tos_uri: `${baseUrl}/terms`,
@@ -124,18 +270,23 @@ export function setupOAuth(app: Express) {
   });
 
   // Add JWKS endpoint
+  // Serves the pre-serialized key set; resource servers revalidate with If-None-Match
   app.get("/.well-known/jwks.json", async (req, res) => {
     try {
-      const publicKey = await jwtService.getPublicKey();
-      if (!publicKey) {
+      const jwks = await jwtService.getJWKSDocument();
+      if (!jwks) {
         return res.status(500).send("No active key pair found");
       }
 
-      // Convert PEM to JWK format
-      const jwk = await jwtService.getJWKS();
-      res.json({
-        keys: [jwk]
-      });
+      res.setHeader("ETag", jwks.etag);
+      res.setHeader("Cache-Control", `public, max-age=${JWKS_MAX_AGE_SECONDS}`);
+
+      const ifNoneMatch = req.headers["if-none-match"];
+      if (ifNoneMatch && (ifNoneMatch === "*" || ifNoneMatch.split(",").some(tag => tag.trim() === jwks.etag))) {
+        return res.status(304).end();
+      }
+
+      res.type("application/json").send(jwks.body);
     } catch (error) {
       res.status(500).send("Error retrieving public key");
     }
@@ -192,7 +343,11 @@ export function setupOAuth(app: Express) {
           type: "access_token"
         };
 
-        const accessToken = await jwtService.generateAccessToken(tokenPayload);
+        const accessToken = await jwtService.generateAccessToken(
+          tokenPayload,
+          undefined,
+          await signingAlgorithmFor(client.tenantId)
+        );
 
         // Redirect with token in fragment
         const redirectUrl = new URL(params.redirect_uri);
@@ -270,7 +425,7 @@ export function setupOAuth(app: Express) {
       const params = tokenSchema.parse(req.body);
       const client = await storage.getClientByClientId(params.client_id);
 
-      if (!client || (params.grant_type !== "implicit" && client.clientSecret !== params.client_secret)) {
+      if (!client || (params.grant_type !== "implicit" && !(await verifyClientSecret(client, params.client_secret)))) {
         return res.status(401).send("Invalid client credentials");
       }
 
@@ -332,14 +487,18 @@ export function setupOAuth(app: Express) {
         type: "access_token"
       };
 
-      const accessToken = await jwtService.generateAccessToken(accessTokenPayload);
+      const accessToken = await jwtService.generateAccessToken(
+        accessTokenPayload,
+        undefined,
+        await signingAlgorithmFor(client.tenantId)
+      );
 
       // Generate refresh token as a secure random string
       const refreshToken = crypto.randomBytes(32).toString("hex");
 
-      // Store tokens in database for reference
+      // Store tokens in database for reference, keyed by the access token's jti
       await storage.createToken({
-        accessToken,
+        jti: accessTokenId(accessToken),
         refreshToken,
         clientId: client._id.toString(),
         userId,
@@ -365,100 +524,126 @@ export function setupOAuth(app: Express) {
       // Validate request parameters
       const params = introspectionSchema.parse(req.body);
       
-      // Extract client authentication from Basic Auth header
-      const authHeader = req.headers.authorization;
-      let clientId: string | undefined;
-      let clientSecret: string | undefined;
-      
-      if (authHeader && authHeader.startsWith('Basic ')) {
-        const base64Credentials = authHeader.slice('Basic '.length);
-        const credentials = Buffer.from(base64Credentials, 'base64').toString('utf8');
-        const [id, secret] = credentials.split(':');
-        clientId = id;
-        clientSecret = secret;
-      } else {
-        // Allow client credentials in request body as well (less secure, but allowed by spec)
-        clientId = req.body.client_id;
-        clientSecret = req.body.client_secret;
-      }
-      
       // Verify client authentication
-      if (!clientId || !clientSecret) {
+      const auth = await authenticateClient(req);
+      if ('error' in auth) {
         return res.status(401).json({
           active: false,
           error: "invalid_client",
-          error_description: "Client authentication required"
+          error_description: auth.error
         });
       }
+      if (!(await limitIntrospection(req, res, auth.client.clientId))) {
+        return;
+      }
+      
+      // Verify the token
+      if (params.token_type_hint !== "refresh_token") {
+        const tokenInfo = await introspectAccessToken(params.token);
+        if (tokenInfo) {
+          return res.json(accessTokenIntrospection(tokenInfo));
+        }
+        // Not a valid JWT access token, might be a refresh token instead
+      }
+      
+      // Look up refresh token in database
+      introspectionStats.refresh++;
+      const token = await storage.getTokenByRefreshToken(params.token);
+      if (token && !token.revoked && token.expiresAt > new Date()) {
+        return res.json(refreshTokenIntrospection(token));
+      }
+      
+      // Token is not active
+      introspectionStats.inactive++;
+      return res.json({ active: false });
+    } catch (error) {
+      res.status(400).json({
+        active: false,
+        error: "invalid_request",
+        error_description: error instanceof Error ? error.message : "Invalid request"
+      });
+    }
+  });
+
+  // Batch token introspection: one client authentication and at most one
+  // query per collection for the whole batch. Results keep the request order.
+  app.post("/oauth/introspect/batch", async (req, res) => {
+    try {
+      const params = batchIntrospectionSchema.parse(req.body);
       
-      const client = await storage.getClientByClientId(clientId);
-      if (!client || client.clientSecret !== clientSecret) {
+      const auth = await authenticateClient(req);
+      if ('error' in auth) {
         return res.status(401).json({
-          active: false,
           error: "invalid_client",
-          error_description: "Invalid client credentials"
+          error_description: auth.error
         });
       }
+      // A batch counts as one call, however many tokens it carries
+      if (!(await limitIntrospection(req, res, auth.client.clientId))) {
+        return;
+      }
       
-      // Verify the token
-      let isAccessToken = params.token_type_hint !== "refresh_token";
-      let tokenInfo: any = null;
+      const requests = params.tokens.map(entry => typeof entry === 'string'
+        ? { token: entry, token_type_hint: params.token_type_hint }
+        : entry);
+      const results: object[] = new Array(requests.length).fill(null);
       
-      if (isAccessToken) {
-        try {
-          // Attempt to validate as JWT access token
-          tokenInfo = await jwtService.verifyToken(params.token);
-          
-          // Make sure we include standard claims described in RFC 7662
-          const response = {
-            active: true,
-            client_id: tokenInfo.client_id,
-            username: tokenInfo.sub,
-            scope: Array.isArray(tokenInfo.scope) ? tokenInfo.scope.join(' ') : tokenInfo.scope,
-            sub: tokenInfo.sub,
-            aud: tokenInfo.client_id,
-            iss: process.env.BASE_URL || 'http://localhost:5000',
-            exp: tokenInfo.exp,
-            iat: tokenInfo.iat,
-            token_type: "access_token"
-          };
-          
-          return res.json(response);
-        } catch (error) {
-          // Not a valid JWT token, might be a refresh token instead
-          isAccessToken = false;
+      // Access tokens are checked locally first; whatever fails is tried as a refresh token
+      const accessTokens: { index: number; tokenId: string; payload: any }[] = [];
+      const refreshCandidates: number[] = [];
+      await Promise.all(requests.map(async (request, index) => {
+        if (request.token_type_hint !== "refresh_token") {
+          try {
+            const payload = await jwtService.verifyToken(request.token);
+            accessTokens.push({ index, tokenId: accessTokenId(request.token, payload), payload });
+            return;
+          } catch (error) {
+            // Not a valid JWT access token, might be a refresh token instead
+          }
+        }
+        refreshCandidates.push(index);
+      }));
+      
+      let revokedIds = new Set<string>();
+      if (INTROSPECTION_MODE === 'strict' && accessTokens.length > 0) {
+        introspectionStats.strict += accessTokens.length;
+        revokedIds = await storage.getRevokedAccessTokenIds(accessTokens.map(entry => entry.tokenId));
+      } else {
+        introspectionStats.fast += accessTokens.length;
+      }
+      for (const entry of accessTokens) {
+        if (revokedIds.has(entry.tokenId)) {
+          refreshCandidates.push(entry.index);
+        } else {
+          results[entry.index] = accessTokenIntrospection(entry.payload);
         }
       }
       
-      if (!isAccessToken) {
-        // Look up refresh token in database
-        const token = await storage.getTokenByRefreshToken(params.token);
-        
-        if (token && token.expiresAt > new Date()) {
-          // Convert token expiration to epoch time
-          const exp = Math.floor(token.expiresAt.getTime() / 1000);
-          
-          const response = {
-            active: true,
-            client_id: token.clientId,
-            username: token.userId,
-            scope: Array.isArray(token.scope) ? token.scope.join(' ') : token.scope,
-            sub: token.userId,
-            aud: token.clientId,
-            iss: process.env.BASE_URL || 'http://localhost:5000',
-            exp,
-            token_type: "refresh_token"
-          };
-          
-          return res.json(response);
+      if (refreshCandidates.length > 0) {
+        introspectionStats.refresh += refreshCandidates.length;
+        const records = await storage.getTokensByRefreshTokens(
+          refreshCandidates.map(index => requests[index].token)
+        );
+        const byRefreshToken = new Map(records.map(record => [record.refreshToken, record]));
+        const now = new Date();
+        for (const index of refreshCandidates) {
+          const token = byRefreshToken.get(requests[index].token);
+          if (token && !token.revoked && token.expiresAt > now) {
+            results[index] = refreshTokenIntrospection(token);
+          }
         }
       }
       
-      // Token is not active
-      return res.json({ active: false });
+      for (let i = 0; i < results.length; i++) {
+        if (!results[i]) {
+          introspectionStats.inactive++;
+          results[i] = { active: false };
+        }
+      }
+      
+      return res.json({ results });
     } catch (error) {
       res.status(400).json({
-        active: false,
         error: "invalid_request",
         error_description: error instanceof Error ? error.message : "Invalid request"
       });
@@ -471,36 +656,12 @@ export function setupOAuth(app: Express) {
       // Validate request parameters
       const params = revocationSchema.parse(req.body);
       
-      // Extract client authentication from Basic Auth header
-      const authHeader = req.headers.authorization;
-      let clientId: string | undefined;
-      let clientSecret: string | undefined;
-      
-      if (authHeader && authHeader.startsWith('Basic ')) {
-        const base64Credentials = authHeader.slice('Basic '.length);
-        const credentials = Buffer.from(base64Credentials, 'base64').toString('utf8');
-        const [id, secret] = credentials.split(':');
-        clientId = id;
-        clientSecret = secret;
-      } else {
-        // Allow client credentials in request body as well (less secure, but allowed by spec)
-        clientId = req.body.client_id;
-        clientSecret = req.body.client_secret;
-      }
-      
       // Verify client authentication
-      if (!clientId || !clientSecret) {
-        return res.status(401).json({
-          error: "invalid_client",
-          error_description: "Client authentication required"
-        });
-      }
-      
-      const client = await storage.getClientByClientId(clientId);
-      if (!client || client.clientSecret !== clientSecret) {
+      const auth = await authenticateClient(req);
+      if ('error' in auth) {
         return res.status(401).json({
           error: "invalid_client",
-          error_description: "Invalid client credentials"
+          error_description: auth.error
         });
       }
       
@@ -0,0 +1,241 @@
+/**
+ * Local Token Revocation State
+ *
+ * Every node keeps the set of revoked, not-yet-expired access tokens in memory
+ * so token verification does not need a MongoDB query. A Bloom filter answers
+ * the common "definitely not revoked" case; only filter hits are checked
+ * against the exact denylist, and only to weed out false positives.
+ *
+ * The set is loaded from revokedTokens at startup and kept current by tailing
+ * inserts through a change stream, or by polling on revokedAt when change
+ * streams are not available. Entries age out once the token itself expires.
+ * Until the initial load completes, lookups fall back to querying MongoDB.
+ */
+
+import { db } from "./db";
+import { watchCollection, CollectionWatcher } from "./changeStreams";
+import { accessTokenId } from "./tokenIds";
+
+const BLOOM_CAPACITY = parseInt(process.env.REVOCATION_BLOOM_CAPACITY || "100000", 10);
+const BLOOM_FALSE_POSITIVE_RATE = 0.01;
+const POLL_INTERVAL_MS = parseInt(process.env.REVOCATION_POLL_INTERVAL_MS || "5000", 10);
+const PRUNE_INTERVAL_MS = 60 * 1000;
+// Revocations written before expiresAt was recorded are kept this long
+const LEGACY_ENTRY_TTL_MS = 24 * 60 * 60 * 1000;
+// Re-read a little behind the newest revokedAt to tolerate clock skew between nodes
+const POLL_OVERLAP_MS = 1000;
+
+function fnv1a(value: string, seed: number): number {
+  let hash = seed;
+  for (let i = 0; i < value.length; i++) {
+    hash ^= value.charCodeAt(i);
+    hash = Math.imul(hash, 0x01000193);
+  }
+  return hash >>> 0;
+}
+
+export class BloomFilter {
+  private bits: Uint32Array;
+  private bitCount: number;
+  private hashCount: number;
+
+  constructor(readonly capacity: number, falsePositiveRate: number = BLOOM_FALSE_POSITIVE_RATE) {
+    this.bitCount = Math.max(32, Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.LN2 * Math.LN2)));
+    this.hashCount = Math.max(1, Math.round((this.bitCount / capacity) * Math.LN2));
+    this.bits = new Uint32Array(Math.ceil(this.bitCount / 32));
+  }
+
+  add(value: string) {
+    const h1 = fnv1a(value, 0x811c9dc5);
+    const h2 = fnv1a(value, 0x050c5d1f) | 1;
+    for (let i = 0; i < this.hashCount; i++) {
+      const bit = (h1 + Math.imul(i, h2)) >>> 0;
+      const index = bit % this.bitCount;
+      this.bits[index >>> 5] |= 1 << (index & 31);
+    }
+  }
+
+  mightContain(value: string): boolean {
+    const h1 = fnv1a(value, 0x811c9dc5);
+    const h2 = fnv1a(value, 0x050c5d1f) | 1;
+    for (let i = 0; i < this.hashCount; i++) {
+      const bit = (h1 + Math.imul(i, h2)) >>> 0;
+      const index = bit % this.bitCount;
+      if ((this.bits[index >>> 5] & (1 << (index & 31))) === 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
+
+export class RevocationList {
+  private entries = new Map<string, number>(); // token id (jti) -> expiry (epoch ms)
+  private bloom = new BloomFilter(BLOOM_CAPACITY);
+  private ready = false;
+  private lastSeen = new Date(0);
+  private watcher: CollectionWatcher | null = null;
+  private pollTimer: NodeJS.Timeout | null = null;
+  private pruneTimer: NodeJS.Timeout | null = null;
+  private stats = {
+    bloomNegatives: 0,
+    confirmed: 0,
+    falsePositives: 0,
+    remoteChecks: 0
+  };
+
+  async isRevoked(tokenId: string): Promise<boolean> {
+    if (!this.ready) {
+      this.stats.remoteChecks++;
+      const revoked = await db.collection('revokedTokens').findOne(
+        { tokenId, type: 'access_token' },
+        { projection: { _id: 1 } }
+      );
+      return revoked !== null;
+    }
+
+    if (!this.bloom.mightContain(tokenId)) {
+      this.stats.bloomNegatives++;
+      return false;
+    }
+
+    const expiresAt = this.entries.get(tokenId);
+    if (expiresAt !== undefined && expiresAt > Date.now()) {
+      this.stats.confirmed++;
+      return true;
+    }
+
+    this.stats.falsePositives++;
+    return false;
+  }
+
+  /**
+   * Record a revocation. Called directly by the node that performs it, and
+   * for revocations observed from other nodes.
+   */
+  add(tokenId: string, expiresAt: number) {
+    if (expiresAt <= Date.now()) return;
+
+    this.entries.set(tokenId, expiresAt);
+    if (this.entries.size > this.bloom.capacity) {
+      this.rebuildBloom();
+    } else {
+      this.bloom.add(tokenId);
+    }
+  }
+
+  async start() {
+    if (this.ready) return;
+
+    this.watcher = watchCollection(
+      'revokedTokens',
+      [{ $match: { operationType: 'insert', 'fullDocument.type': 'access_token' } }],
+      (change) => {
+        if (change.operationType === 'insert') {
+          this.ingest(change.fullDocument);
+        }
+      },
+      (error) => {
+        console.warn(`revokedTokens change stream unavailable (${error.message}), polling every ${POLL_INTERVAL_MS}ms`);
+        this.watcher = null;
+        this.startPolling();
+      }
+    );
+
+    await this.loadSince(new Date(0));
+    this.ready = true;
+
+    this.pruneTimer = setInterval(() => this.prune(), PRUNE_INTERVAL_MS);
+    this.pruneTimer.unref();
+  }
+
+  async stop() {
+    if (this.pollTimer) clearInterval(this.pollTimer);
+    if (this.pruneTimer) clearInterval(this.pruneTimer);
+    this.pollTimer = null;
+    this.pruneTimer = null;
+    if (this.watcher) {
+      await this.watcher.close();
+      this.watcher = null;
+    }
+  }
+
+  getStats() {
+    return {
+      ...this.stats,
+      ready: this.ready,
+      size: this.entries.size
+    };
+  }
+
+  private startPolling() {
+    this.pollTimer = setInterval(() => {
+      const since = new Date(this.lastSeen.getTime() - POLL_OVERLAP_MS);
+      this.loadSince(since).catch(console.error);
+    }, POLL_INTERVAL_MS);
+    this.pollTimer.unref();
+  }
+
+  private async loadSince(since: Date) {
+    const cursor = db.collection('revokedTokens').find(
+      {
+        type: 'access_token',
+        revokedAt: { $gt: since },
+        $or: [{ expiresAt: { $gt: new Date() } }, { expiresAt: { $exists: false } }]
+      },
+      { projection: { tokenId: 1, token: 1, revokedAt: 1, expiresAt: 1 } }
+    );
+
+    for await (const doc of cursor) {
+      this.ingest(doc);
+    }
+  }
+
+  private ingest(doc: any) {
+    // Entries written before the token id migration still carry the full token
+    const tokenId: string | undefined = doc?.tokenId ?? (doc?.token && accessTokenId(doc.token));
+    if (!tokenId) return;
+
+    const revokedAt: Date = doc.revokedAt ?? new Date();
+    if (revokedAt > this.lastSeen) {
+      this.lastSeen = revokedAt;
+    }
+
+    const expiresAt = doc.expiresAt
+      ? new Date(doc.expiresAt).getTime()
+      : revokedAt.getTime() + LEGACY_ENTRY_TTL_MS;
+    this.add(tokenId, expiresAt);
+  }
+
+  /**
+   * Drop expired entries and rebuild the filter, which cannot delete in place.
+   */
+  private prune() {
+    const now = Date.now();
+    let removed = 0;
+    for (const [tokenId, expiresAt] of this.entries) {
+      if (expiresAt <= now) {
+        this.entries.delete(tokenId);
+        removed++;
+      }
+    }
+    if (removed > 0) {
+      this.rebuildBloom();
+    }
+  }
+
+  private rebuildBloom() {
+    let capacity = BLOOM_CAPACITY;
+    while (capacity < this.entries.size * 2) {
+      capacity *= 2;
+    }
+
+    const bloom = new BloomFilter(capacity);
+    for (const tokenId of this.entries.keys()) {
+      bloom.add(tokenId);
+    }
+    this.bloom = bloom;
+  }
+}
+
+export const revocationList = new RevocationList();
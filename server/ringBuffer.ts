@@ -0,0 +1,98 @@
+/**
+ * Fixed-capacity Ring Buffer
+ *
+ * Preallocated circular queue. push, shift and peeking at either end are
+ * O(1) and never allocate, so it is safe to use on the request path.
+ */
+
+export class RingBuffer<T> {
+  private items: (T | undefined)[];
+  private head = 0; // index of the oldest item
+  private count = 0;
+
+  constructor(readonly capacity: number) {
+    if (capacity < 1) {
+      throw new Error('RingBuffer capacity must be at least 1');
+    }
+    this.items = new Array(capacity);
+  }
+
+  get size(): number {
+    return this.count;
+  }
+
+  get isFull(): boolean {
+    return this.count === this.capacity;
+  }
+
+  /**
+   * Append an item. Returns false, leaving the buffer unchanged, if it is full.
+   */
+  push(item: T): boolean {
+    if (this.count === this.capacity) {
+      return false;
+    }
+    this.items[(this.head + this.count) % this.capacity] = item;
+    this.count++;
+    return true;
+  }
+
+  /**
+   * Append an item, overwriting the oldest one if the buffer is full.
+   * Returns the overwritten item.
+   */
+  pushOverwrite(item: T): T | undefined {
+    if (this.count < this.capacity) {
+      this.push(item);
+      return undefined;
+    }
+    const evicted = this.items[this.head];
+    this.items[this.head] = item;
+    this.head = (this.head + 1) % this.capacity;
+    return evicted;
+  }
+
+  /**
+   * Remove and return the oldest item.
+   */
+  shift(): T | undefined {
+    if (this.count === 0) {
+      return undefined;
+    }
+    const item = this.items[this.head];
+    this.items[this.head] = undefined;
+    this.head = (this.head + 1) % this.capacity;
+    this.count--;
+    return item;
+  }
+
+  /**
+   * Remove and return up to max of the oldest items, oldest first.
+   */
+  drain(max = this.count): T[] {
+    const n = Math.min(max, this.count);
+    const drained = new Array<T>(n);
+    for (let i = 0; i < n; i++) {
+      drained[i] = this.shift() as T;
+    }
+    return drained;
+  }
+
+  /**
+   * Up to limit of the most recently pushed items, newest first. O(limit).
+   */
+  newest(limit = this.count): T[] {
+    const n = Math.min(limit, this.count);
+    const result = new Array<T>(n);
+    for (let i = 0; i < n; i++) {
+      result[i] = this.items[(this.head + this.count - 1 - i) % this.capacity] as T;
+    }
+    return result;
+  }
+
+  clear() {
+    this.items = new Array(this.capacity);
+    this.head = 0;
+    this.count = 0;
+  }
+}
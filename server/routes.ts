@@ -4,7 +4,34 @@ import { setupAuth } from "./auth";
 import { setupOAuth } from "./oauth";
 import { setupWebAuthn } from "./webauthn";
 import { storage } from "./storage";
-import { insertClientSchema } from "@shared/schema";
+import { insertClientSchema, type User } from "@shared/schema";
+import { z } from "zod";
+import { healthCheck, readinessCheck, livenessCheck, metricsEndpoint } from "./middleware/health";
+import { createPipeline, pipelineProfiles } from "./middleware/pipeline";
+
+// Filters for the admin audit log endpoints
+const auditLogQuerySchema = z.object({
+  tenantId: z.string().optional(),
+  userId: z.string().optional(),
+  clientId: z.string().optional(),
+  eventType: z.string().optional(),
+  from: z.coerce.date().optional(),
+  to: z.coerce.date().optional(),
+  limit: z.coerce.number().int().min(1).max(1000).default(100),
+  cursor: z.string().optional(),
+});
+
+/**
+ * Audit filters narrowed to what the caller may read: super admins see every
+ * tenant, tenant admins only their own, whatever tenantId they asked for.
+ * Null when the caller has no tenant to scope to.
+ */
+function scopeAuditQuery<T extends { tenantId?: string }>(user: User, query: T): T | null {
+  if (user.isSuperAdmin) {
+    return query;
+  }
+  return user.tenantId ? { ...query, tenantId: user.tenantId } : null;
+}
 
 function requireAdmin(req: any, res: any, next: any) {
   if (!req.isAuthenticated() || !req.user.isAdmin) {
@@ -14,13 +41,17 @@ function requireAdmin(req: any, res: any, next: any) {
 }
 
 export async function registerRoutes(app: Express): Promise<Server> {
-  // Health check endpoint for containerized environments
-  app.get('/health', (req, res) => {
-    res.status(200).json({ 
-      status: 'ok',
-      timestamp: new Date().toISOString() 
-    });
-  });
+  // Probe endpoints for containerized environments; they serve the latest
+  // background check result and never wait on the database
+  app.get('/health', healthCheck);
+  app.get('/ready', readinessCheck);
+  app.get('/live', livenessCheck);
+
+  // OpenMetrics exposition for Prometheus
+  app.get('/metrics', metricsEndpoint);
+
+  // Per-route middleware, including the session for browser-facing routes
+  app.use(createPipeline(pipelineProfiles));
 
   setupAuth(app);
   setupOAuth(app);
@@ -46,7 +77,9 @@ export async function registerRoutes(app: Express): Promise<Server> {
         userId: req.user!._id.toString(),
       });
 
-      res.status(201).json(client);
+      // The plaintext secret is included here and never again
+      const { clientSecretHash, ...createdClient } = client;
+      res.status(201).json(createdClient);
     } catch (error) {
       res
         .status(400)
@@ -61,7 +94,8 @@ export async function registerRoutes(app: Express): Promise<Server> {
     }
 
     const clients = await storage.listClientsByUser(req.user!._id.toString());
-    res.json(clients);
+    const sanitizedClients = clients.map(({ clientSecretHash, ...client }) => client);
+    res.json(sanitizedClients);
   });
   
   // Get a specific client
@@ -83,7 +117,8 @@ export async function registerRoutes(app: Express): Promise<Server> {
         return res.status(403).send("Unauthorized access to this client");
       }
       
-      res.json(client);
+      const { clientSecretHash, ...sanitizedClient } = client;
+      res.json(sanitizedClient);
     } catch (error) {
       console.error("Error fetching client:", error);
       res.status(500).send("Error fetching client");
@@ -116,13 +151,48 @@ export async function registerRoutes(app: Express): Promise<Server> {
         return res.status(500).send("Failed to update client");
       }
       
-      res.json(updatedClient);
+      const { clientSecretHash, ...sanitizedClient } = updatedClient;
+      res.json(sanitizedClient);
     } catch (error) {
       console.error("Error updating client:", error);
       res.status(500).send("Error updating client");
     }
   });
   
+  // Issue a new client secret, e.g. when the owner lost the old one
+  app.post("/api/clients/:clientId/rotate-secret", async (req, res) => {
+    if (!req.isAuthenticated()) {
+      return res.status(401).send("Authentication required");
+    }
+    
+    try {
+      const clientId = req.params.clientId;
+      const client = await storage.getClientById(clientId);
+      
+      if (!client) {
+        return res.status(404).send("Client not found");
+      }
+      
+      // Check if the client belongs to the current user or if user is admin
+      if (client.userId !== req.user!._id.toString() && !req.user!.isAdmin) {
+        return res.status(403).send("Unauthorized access to this client");
+      }
+      
+      const rotatedClient = await storage.rotateClientSecret(clientId);
+      
+      if (!rotatedClient) {
+        return res.status(500).send("Failed to rotate client secret");
+      }
+      
+      // The new plaintext secret is included here and never again
+      const { clientSecretHash, ...sanitizedClient } = rotatedClient;
+      res.json(sanitizedClient);
+    } catch (error) {
+      console.error("Error rotating client secret:", error);
+      res.status(500).send("Error rotating client secret");
+    }
+  });
+  
   // Delete a client
   app.delete("/api/clients/:clientId", async (req, res) => {
     if (!req.isAuthenticated()) {
@@ -249,12 +319,86 @@ export async function registerRoutes(app: Express): Promise<Server> {
   app.get("/api/admin/clients", requireAdmin, async (req, res) => {
     try {
       const clients = await storage.listAllClients();
-      res.json(clients);
+      const sanitizedClients = clients.map(({ clientSecretHash, ...client }) => client);
+      res.json(sanitizedClients);
     } catch (error) {
       res.status(500).send("Error fetching clients");
     }
   });
 
+  // Audit events, newest first. Pass nextCursor back as ?cursor= for the next page.
+  app.get("/api/admin/audit-logs", requireAdmin, async (req, res) => {
+    let params: z.infer<typeof auditLogQuerySchema>;
+    try {
+      params = auditLogQuerySchema.parse(req.query);
+    } catch (error) {
+      return res.status(400).send(error instanceof Error ? error.message : "Invalid query");
+    }
+
+    const { limit, cursor, ...filters } = params;
+    const query = scopeAuditQuery(req.user!, filters);
+    if (!query) {
+      return res.status(403).send("Tenant context required");
+    }
+
+    try {
+      const page = await storage.listAuditLogs(query, limit, cursor);
+      res.json(page);
+    } catch (error) {
+      if (error instanceof Error && error.message === 'Invalid cursor') {
+        return res.status(400).send(error.message);
+      }
+      console.error("Error fetching audit logs:", error);
+      res.status(500).send("Error fetching audit logs");
+    }
+  });
+
+  // Streaming NDJSON export of every matching audit event
+  app.get("/api/admin/audit-logs/export", requireAdmin, async (req, res) => {
+    let params: z.infer<typeof auditLogQuerySchema>;
+    try {
+      params = auditLogQuerySchema.parse(req.query);
+    } catch (error) {
+      return res.status(400).send(error instanceof Error ? error.message : "Invalid query");
+    }
+
+    const { limit, cursor, ...filters } = params;
+    const query = scopeAuditQuery(req.user!, filters);
+    if (!query) {
+      return res.status(403).send("Tenant context required");
+    }
+
+    res.setHeader('Content-Type', 'application/x-ndjson');
+    res.setHeader('Content-Disposition', 'attachment; filename="audit-logs.ndjson"');
+
+    try {
+      for await (const event of storage.streamAuditLogs(query)) {
+        if (res.destroyed) break;
+        if (!res.write(JSON.stringify(event) + '\n')) {
+          // Respect back-pressure from slow clients; only one of the two fires,
+          // so both listeners are removed to keep them from piling up
+          await new Promise<void>(resolve => {
+            const done = () => {
+              res.off('drain', done);
+              res.off('close', done);
+              resolve();
+            };
+            res.on('drain', done);
+            res.on('close', done);
+          });
+        }
+      }
+      res.end();
+    } catch (error) {
+      console.error("Error exporting audit logs:", error);
+      if (!res.headersSent) {
+        res.status(500).send("Error exporting audit logs");
+      } else {
+        res.destroy(error as Error);
+      }
+    }
+  });
+
   // Public tenant listing for registration
   app.get("/api/public/tenants", async (req, res) => {
     try {
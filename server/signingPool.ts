@@ -0,0 +1,297 @@
+/**
+ * JWT Signing Worker Pool
+ *
+ * Optional pool of worker_threads that perform the private-key operation for
+ * token signing, so a burst of token requests does not monopolise the main
+ * event loop. The main thread still builds the header and claims (cheap);
+ * workers only compute signatures. Requests queued during one tick are sent
+ * to a worker as a single batch.
+ *
+ * Workers hold the newest key per algorithm. A new kid for an algorithm
+ * means the previous key was rotated out, so the old key is dropped from every
+ * worker once the requests already queued for it have been dispatched. A
+ * worker that crashes or exits fails its in-flight requests and is replaced by
+ * one loaded with the current keys.
+ *
+ * Enabled by setting JWT_SIGNING_POOL_SIZE to the number of workers; with 0
+ * (the default) tokens are signed inline.
+ */
+
+import { Worker } from "worker_threads";
+import type { KeyObject } from "crypto";
+import { encodeSegment } from "./jws";
+
+const POOL_SIZE = parseInt(process.env.JWT_SIGNING_POOL_SIZE || "0", 10);
+const MAX_BATCH_SIZE = parseInt(process.env.JWT_SIGNING_BATCH_SIZE || "64", 10);
+
+// Runs inside each worker. Kept as plain JavaScript source so it can be started
+// with eval and needs no separate build entry point.
+const WORKER_SOURCE = `
+const { parentPort } = require('worker_threads');
+const crypto = require('crypto');
+const keys = new Map();
+
+function signatureFor(algorithm, key, data) {
+  switch (algorithm) {
+    case 'EdDSA':
+      return crypto.sign(null, data, key);
+    case 'ES256':
+      return crypto.sign('sha256', data, { key, dsaEncoding: 'ieee-p1363' });
+    default:
+      return crypto.sign('sha256', data, key);
+  }
+}
+
+parentPort.on('message', (message) => {
+  if (message.type === 'key') {
+    keys.set(message.kid, message.key);
+    return;
+  }
+  if (message.type === 'forget') {
+    keys.delete(message.kid);
+    return;
+  }
+
+  const results = message.items.map((item) => {
+    try {
+      const key = keys.get(item.kid);
+      if (!key) throw new Error('Signing key ' + item.kid + ' not loaded in worker');
+      const signature = signatureFor(item.algorithm, key, Buffer.from(item.signingInput));
+      return { id: item.id, signature: signature.toString('base64url') };
+    } catch (error) {
+      return { id: item.id, error: error.message };
+    }
+  });
+  parentPort.postMessage({ batchId: message.batchId, results });
+});
+`;
+
+export interface SigningKey {
+  kid: string;
+  algorithm: string;
+  privateKey: KeyObject;
+}
+
+interface SignRequest {
+  id: number;
+  kid: string;
+  algorithm: string;
+  signingInput: string;
+  enqueuedAt: number;
+  resolve: (token: string) => void;
+  reject: (error: Error) => void;
+}
+
+interface PoolWorker {
+  worker: Worker;
+  inFlight: Map<number, SignRequest[]>; // batchId -> requests
+  inFlightCount: number;
+}
+
+export class SigningPool {
+  private workers: PoolWorker[] = [];
+  private keys = new Map<string, SigningKey>(); // kid -> key, the newest per algorithm
+  private retiredKids: string[] = [];
+  private queue: SignRequest[] = [];
+  private flushScheduled = false;
+  private nextId = 0;
+  private nextBatchId = 0;
+  private stats = {
+    signed: 0,
+    failed: 0,
+    batches: 0,
+    totalLatencyMs: 0,
+    maxLatencyMs: 0,
+    workerRestarts: 0
+  };
+
+  constructor(private size: number) {
+    for (let i = 0; i < size; i++) {
+      this.workers.push(this.spawn());
+    }
+  }
+
+  get enabled(): boolean {
+    return this.size > 0;
+  }
+
+  sign(key: SigningKey, claims: object): Promise<string> {
+    const header = encodeSegment({ alg: key.algorithm, typ: 'JWT', kid: key.kid });
+    const signingInput = `${header}.${encodeSegment(claims)}`;
+
+    if (!this.keys.has(key.kid)) {
+      this.loadKey(key);
+    }
+
+    return new Promise((resolve, reject) => {
+      this.queue.push({
+        id: this.nextId++,
+        kid: key.kid,
+        algorithm: key.algorithm,
+        signingInput,
+        enqueuedAt: performance.now(),
+        resolve,
+        reject
+      });
+      this.scheduleFlush();
+    });
+  }
+
+  getStats() {
+    return {
+      size: this.size,
+      queueDepth: this.queue.length,
+      inFlight: this.workers.reduce((total, poolWorker) => total + poolWorker.inFlightCount, 0),
+      signed: this.stats.signed,
+      failed: this.stats.failed,
+      batches: this.stats.batches,
+      averageLatencyMs: this.stats.signed > 0 ? this.stats.totalLatencyMs / this.stats.signed : 0,
+      maxLatencyMs: this.stats.maxLatencyMs,
+      workerRestarts: this.stats.workerRestarts
+    };
+  }
+
+  async close() {
+    const workers = this.workers;
+    this.workers = [];
+    this.size = 0;
+    await Promise.all(workers.map(poolWorker => poolWorker.worker.terminate()));
+  }
+
+  /**
+   * Send a new key to every worker and retire the key it replaces.
+   */
+  private loadKey(key: SigningKey) {
+    for (const [kid, existing] of this.keys) {
+      if (existing.algorithm === key.algorithm) {
+        this.keys.delete(kid);
+        this.retiredKids.push(kid);
+      }
+    }
+    this.keys.set(key.kid, key);
+    for (const poolWorker of this.workers) {
+      poolWorker.worker.postMessage({ type: 'key', kid: key.kid, key: key.privateKey });
+    }
+  }
+
+  private scheduleFlush() {
+    if (this.flushScheduled) return;
+    this.flushScheduled = true;
+    setImmediate(() => {
+      this.flushScheduled = false;
+      this.flush();
+    });
+  }
+
+  private flush() {
+    while (this.queue.length > 0 && this.workers.length > 0) {
+      const batch = this.queue.splice(0, MAX_BATCH_SIZE);
+      const poolWorker = this.leastLoaded();
+      const batchId = this.nextBatchId++;
+
+      poolWorker.inFlight.set(batchId, batch);
+      poolWorker.inFlightCount += batch.length;
+      this.stats.batches++;
+      poolWorker.worker.postMessage({
+        type: 'sign',
+        batchId,
+        items: batch.map(request => ({
+          id: request.id,
+          kid: request.kid,
+          algorithm: request.algorithm,
+          signingInput: request.signingInput
+        }))
+      });
+    }
+
+    // Workers handle messages in order, so batches sent above still find the key
+    if (this.retiredKids.length > 0) {
+      for (const kid of this.retiredKids) {
+        for (const poolWorker of this.workers) {
+          poolWorker.worker.postMessage({ type: 'forget', kid });
+        }
+      }
+      this.retiredKids = [];
+    }
+  }
+
+  private leastLoaded(): PoolWorker {
+    let best = this.workers[0];
+    for (const poolWorker of this.workers) {
+      if (poolWorker.inFlightCount < best.inFlightCount) {
+        best = poolWorker;
+      }
+    }
+    return best;
+  }
+
+  private spawn(): PoolWorker {
+    const poolWorker: PoolWorker = {
+      worker: new Worker(WORKER_SOURCE, { eval: true }),
+      inFlight: new Map(),
+      inFlightCount: 0
+    };
+
+    for (const key of this.keys.values()) {
+      poolWorker.worker.postMessage({ type: 'key', kid: key.kid, key: key.privateKey });
+    }
+
+    poolWorker.worker.unref();
+    poolWorker.worker.on('message', (message: { batchId: number; results: { id: number; signature?: string; error?: string }[] }) => {
+      this.complete(poolWorker, message.batchId, message.results);
+    });
+    poolWorker.worker.on('error', (error) => {
+      this.replace(poolWorker, error);
+    });
+    // Also fires after 'error', and on exits that emit no error at all
+    poolWorker.worker.on('exit', (code) => {
+      this.replace(poolWorker, new Error(`JWT signing worker exited with code ${code}`));
+    });
+
+    return poolWorker;
+  }
+
+  private complete(poolWorker: PoolWorker, batchId: number, results: { id: number; signature?: string; error?: string }[]) {
+    const batch = poolWorker.inFlight.get(batchId);
+    if (!batch) return;
+    poolWorker.inFlight.delete(batchId);
+    poolWorker.inFlightCount -= batch.length;
+
+    const now = performance.now();
+    results.forEach((result, index) => {
+      const request = batch[index];
+      if (result.signature) {
+        const latency = now - request.enqueuedAt;
+        this.stats.signed++;
+        this.stats.totalLatencyMs += latency;
+        this.stats.maxLatencyMs = Math.max(this.stats.maxLatencyMs, latency);
+        request.resolve(`${request.signingInput}.${result.signature}`);
+      } else {
+        this.stats.failed++;
+        request.reject(new Error(result.error || 'Signing failed'));
+      }
+    });
+  }
+
+  /**
+   * A crashed or exited worker fails its in-flight requests and is replaced.
+   */
+  private replace(poolWorker: PoolWorker, error: Error) {
+    for (const batch of poolWorker.inFlight.values()) {
+      for (const request of batch) {
+        this.stats.failed++;
+        request.reject(error);
+      }
+    }
+    poolWorker.inFlight.clear();
+    poolWorker.inFlightCount = 0;
+
+    const index = this.workers.indexOf(poolWorker);
+    if (index === -1) return; // Already replaced, or the pool was closed
+    console.error('JWT signing worker failed:', error);
+    this.stats.workerRestarts++;
+    this.workers[index] = this.spawn();
+  }
+}
+
+export const signingPool = new SigningPool(POOL_SIZE);
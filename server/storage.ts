@@ -1,4 +1,4 @@
-import { db, client } from "./db";
+import { db, client, DB_NAME } from "./db";
 import session from "express-session";
 import MongoStore from "connect-mongo";
 import crypto from "crypto";
@@ -10,7 +10,93 @@ import {
   Token, InsertToken,
   WebAuthnCredential, InsertWebAuthnCredential
 } from "@shared/schema";
-import { ObjectId } from "mongodb";
+import { ObjectId, type Document } from "mongodb";
+import { jwtService } from "./jwt";
+import { revocationList } from "./revocation";
+import { accessTokenId, tokenDigest } from "./tokenIds";
+import { LruCache } from "./cache";
+import { generateClientSecret, hashClientSecret } from "./clientSecrets";
+import { watchCollection } from "./changeStreams";
+import type { AuditLog } from "./middleware/audit";
+import { instrumentAsyncMethods, mongoOperationDuration } from "./metrics";
+import { usageCounters } from "./usageCounters";
+
+// Longest access token lifetime issued (generateAccessToken's default);
+// revocation entries never need to outlive it
+const ACCESS_TOKEN_MAX_LIFETIME_MS = 60 * 60 * 1000;
+
+// Client records are read on every OAuth request; cache them per node
+const CLIENT_CACHE_MAX_ENTRIES = parseInt(process.env.CLIENT_CACHE_MAX_ENTRIES || "10000", 10);
+const CLIENT_CACHE_TTL_MS = parseInt(process.env.CLIENT_CACHE_TTL_MS || "60000", 10);
+// Unknown client_ids are remembered briefly so floods of bad ids do not reach MongoDB
+const CLIENT_CACHE_NEGATIVE_TTL_MS = parseInt(process.env.CLIENT_CACHE_NEGATIVE_TTL_MS || "10000", 10);
+
+// Tenants are few and read on every tenant-routed request. The whole set is
+// reloaded every TENANT_CACHE_REFRESH_MS; entries outlive two refreshes.
+const TENANT_CACHE_MAX_ENTRIES = parseInt(process.env.TENANT_CACHE_MAX_ENTRIES || "10000", 10);
+const TENANT_CACHE_REFRESH_MS = parseInt(process.env.TENANT_CACHE_REFRESH_MS || "60000", 10);
+const TENANT_CACHE_NEGATIVE_TTL_MS = parseInt(process.env.TENANT_CACHE_NEGATIVE_TTL_MS || "30000", 10);
+
+// Audit log filters; each maps onto one of the auditLogs compound indexes
+export interface AuditLogQuery {
+  tenantId?: string;
+  userId?: string;
+  clientId?: string;
+  eventType?: string;
+  from?: Date;
+  to?: Date;
+}
+
+export interface AuditLogPage {
+  events: AuditLog[];
+  nextCursor: string | null;
+}
+
+/**
+ * Keyset cursor: the (timestamp, _id) of the last event on the page, so the
+ * next page starts from an index seek instead of skipping over earlier pages.
+ */
+function encodeAuditCursor(event: AuditLog): string {
+  return Buffer.from(JSON.stringify([event.timestamp.getTime(), event.id])).toString('base64url');
+}
+
+function decodeAuditCursor(cursor: string): { timestamp: Date; id: string } {
+  try {
+    const [time, id] = JSON.parse(Buffer.from(cursor, 'base64url').toString());
+    if (typeof time === 'number' && typeof id === 'string') {
+      return { timestamp: new Date(time), id };
+    }
+  } catch (error) {
+    // Fall through to the error below
+  }
+  throw new Error('Invalid cursor');
+}
+
+function auditLogFilter(query: AuditLogQuery, cursor?: string): Document {
+  const filter: Document = {};
+  if (query.tenantId) filter.tenantId = query.tenantId;
+  if (query.userId) filter.userId = query.userId;
+  if (query.clientId) filter.clientId = query.clientId;
+  if (query.eventType) filter.eventType = query.eventType;
+  if (query.from || query.to) {
+    filter.timestamp = {
+      ...(query.from ? { $gte: query.from } : {}),
+      ...(query.to ? { $lt: query.to } : {})
+    };
+  }
+  if (cursor) {
+    const after = decodeAuditCursor(cursor);
+    filter.$or = [
+      { timestamp: { $lt: after.timestamp } },
+      { timestamp: after.timestamp, _id: { $lt: after.id } }
+    ];
+  }
+  return filter;
+}
+
+function toAuditLog({ _id, ...event }: Document): AuditLog {
+  return { id: _id, ...event } as AuditLog;
+}
 
 export interface IStorage {
   // Tenant operations
@@ -20,6 +106,7 @@ export interface IStorage {
   updateTenant(tenantId: string, tenantData: Partial<Omit<Tenant, '_id'>>): Promise<Tenant | undefined>;
   deleteTenant(tenantId: string): Promise<boolean>;
   listTenants(): Promise<Tenant[]>;
+  warmTenantCache(): Promise<void>;
 
   // User operations (now tenant-scoped)
   getUser(id: string): Promise<User | undefined>;
@@ -28,6 +115,7 @@ export interface IStorage {
   updateUser(userId: string, userData: Partial<Omit<User, '_id'>>): Promise<User | undefined>;
   deleteUser(userId: string): Promise<boolean>;
   updateUserChallenge(userId: string, challenge: string): Promise<void>;
+  recordLogin(userId: string): Promise<void>;
   listUsersByTenant(tenantId: string): Promise<User[]>;
 
   // WebAuthn operations
@@ -38,7 +126,8 @@ export interface IStorage {
 
   // Client operations (now tenant-scoped)
   createClient(client: Omit<InsertClient, "clientId" | "clientSecret">): Promise<Client>;
-  updateClient(id: string, clientData: Partial<Omit<Client, "_id" | "clientId" | "clientSecret">>): Promise<Client | undefined>;
+  updateClient(id: string, clientData: Partial<Omit<Client, "_id" | "clientId" | "clientSecret" | "clientSecretHash">>): Promise<Client | undefined>;
+  rotateClientSecret(id: string): Promise<Client | undefined>;
   deleteClient(id: string): Promise<boolean>;
   getClientById(id: string): Promise<Client | undefined>;
   getClientByClientId(clientId: string): Promise<Client | undefined>;
@@ -52,36 +141,172 @@ export interface IStorage {
 
   createToken(token: InsertToken): Promise<Token>;
   getTokenByAccessToken(token: string): Promise<Token | undefined>;
+  getTokenByJti(jti: string): Promise<Token | undefined>;
   getTokenByRefreshToken(token: string): Promise<Token | undefined>;
+  getTokensByRefreshTokens(tokens: string[]): Promise<Token[]>;
   revokeAccessToken(token: string): Promise<void>;
   revokeRefreshToken(token: string): Promise<void>;
+  isAccessTokenRevoked(tokenId: string): Promise<boolean>;
+  getRevokedAccessTokenIds(tokenIds: string[]): Promise<Set<string>>;
 
   sessionStore: session.Store;
 
   // Admin operations
   listUsers(): Promise<User[]>;
   listAllClients(): Promise<Client[]>;
+  listAuditLogs(query: AuditLogQuery, limit: number, cursor?: string): Promise<AuditLogPage>;
+  streamAuditLogs(query: AuditLogQuery): AsyncIterable<AuditLog>;
 }
 
 export class MongoStorage implements IStorage {
   sessionStore: session.Store;
+  private clientCache = new LruCache<string, Client>({
+    maxEntries: CLIENT_CACHE_MAX_ENTRIES,
+    ttlMs: CLIENT_CACHE_TTL_MS,
+    negativeTtlMs: CLIENT_CACHE_NEGATIVE_TTL_MS
+  });
+
+  private tenantsByDomain = new LruCache<string, Tenant>({
+    maxEntries: TENANT_CACHE_MAX_ENTRIES,
+    ttlMs: 2 * TENANT_CACHE_REFRESH_MS + 1000,
+    negativeTtlMs: TENANT_CACHE_NEGATIVE_TTL_MS
+  });
+  private tenantsById = new LruCache<string, Tenant>({
+    maxEntries: TENANT_CACHE_MAX_ENTRIES,
+    ttlMs: 2 * TENANT_CACHE_REFRESH_MS + 1000,
+    negativeTtlMs: TENANT_CACHE_NEGATIVE_TTL_MS
+  });
+  // True while the caches hold every tenant, so a miss means "no such tenant"
+  private tenantSetComplete = false;
+  private tenantRefreshTimer: NodeJS.Timeout | null = null;
 
   constructor() {
+    // Sessions share the application's connection pool
     this.sessionStore = MongoStore.create({
-      clientPromise: client.connect(),
+      client,
+      dbName: DB_NAME,
       collectionName: 'sessions',
-      ttl: 24 * 60 * 60, // 1 day in seconds,
+      ttl: 14 * 24 * 60 * 60, // Matches the session cookie's maxAge
+      autoRemove: 'native',
       crypto: {
         secret: process.env.SESSION_SECRET ?? "dev-secret-key"
-      }
+      },
+      touchAfter: 24 * 3600
     });
+    this.watchClients();
+    this.watchTenants();
+  }
+
+  /**
+   * Drop cached clients changed by other nodes. Without change streams
+   * (standalone MongoDB) remote changes are picked up when the TTL expires.
+   */
+  private watchClients() {
+    watchCollection(
+      'clients',
+      [{ $match: { operationType: { $in: ['insert', 'update', 'replace', 'delete'] } } }],
+      (change) => {
+        if (change.operationType === 'insert') {
+          // Clears a cached negative lookup for the new clientId
+          this.clientCache.delete(change.fullDocument.clientId);
+        } else if ('documentKey' in change) {
+          const id = change.documentKey._id.toString();
+          this.clientCache.deleteWhere(cached => cached._id.toString() === id);
+        }
+      },
+      (error) => {
+        console.warn(`clients change stream unavailable (${error.message}), relying on ${CLIENT_CACHE_TTL_MS}ms cache TTL`);
+      }
+    );
+  }
+
+  /**
+   * Keep cached tenants in step with changes made by other nodes. Without
+   * change streams, the periodic full reload picks them up instead.
+   */
+  private watchTenants() {
+    watchCollection<Tenant>(
+      'tenants',
+      [{ $match: { operationType: { $in: ['insert', 'update', 'replace', 'delete'] } } }],
+      (change) => {
+        if (!('documentKey' in change)) return;
+        this.forgetTenant(change.documentKey._id.toString());
+        if ('fullDocument' in change && change.fullDocument) {
+          this.cacheTenant(change.fullDocument as Tenant);
+        }
+      },
+      (error) => {
+        console.warn(`tenants change stream unavailable (${error.message}), relying on ${TENANT_CACHE_REFRESH_MS}ms refresh`);
+      },
+      { fullDocument: 'updateLookup' }
+    );
+  }
+
+  private cacheTenant(tenant: Tenant) {
+    this.tenantsByDomain.set(tenant.domain, tenant);
+    this.tenantsById.set(tenant._id.toString(), tenant);
+  }
+
+  private forgetTenant(id: string) {
+    this.tenantsById.delete(id);
+    this.tenantsByDomain.deleteWhere(cached => cached._id.toString() === id);
+  }
+
+  /**
+   * Load every tenant into the caches, then keep reloading them in the
+   * background so tenant routing does no I/O on the request path.
+   */
+  async warmTenantCache(): Promise<void> {
+    try {
+      await this.refreshTenantCache();
+    } catch (error) {
+      // Lookups fall back to MongoDB until a refresh succeeds
+      console.error('Tenant cache warm-up failed:', error);
+    }
+    if (!this.tenantRefreshTimer) {
+      this.tenantRefreshTimer = setInterval(() => {
+        this.refreshTenantCache().catch(error => console.error('Tenant cache refresh failed:', error));
+      }, TENANT_CACHE_REFRESH_MS);
+      this.tenantRefreshTimer.unref();
+    }
+  }
+
+  private async refreshTenantCache() {
+    try {
+      const tenants = await db.collection("tenants")
+        .find({})
+        .limit(TENANT_CACHE_MAX_ENTRIES + 1)
+        .toArray() as Tenant[];
+      // Drop tenants deleted since the last refresh
+      const ids = new Set(tenants.map(tenant => tenant._id.toString()));
+      this.tenantsByDomain.deleteWhere(cached => !ids.has(cached._id.toString()));
+      this.tenantsById.deleteWhere(cached => !ids.has(cached._id.toString()));
+      tenants.forEach(tenant => this.cacheTenant(tenant));
+      this.tenantSetComplete = tenants.length <= TENANT_CACHE_MAX_ENTRIES;
+    } catch (error) {
+      this.tenantSetComplete = false;
+      throw error;
+    }
+  }
+
+  getCacheStats() {
+    return {
+      clients: this.clientCache.getStats(),
+      tenants: {
+        ...this.tenantsByDomain.getStats(),
+        complete: this.tenantSetComplete
+      }
+    };
   }
 
   // Tenant operations
   async getTenant(id: string): Promise<Tenant | undefined> {
     try {
-      const tenant = await db.collection("tenants").findOne({ _id: new ObjectId(id) });
-      return tenant as Tenant | undefined;
+      const tenant = await this.tenantsById.getOrLoad(id, async () => {
+        if (this.tenantSetComplete) return null;
+        return await db.collection("tenants").findOne({ _id: new ObjectId(id) }) as Tenant | null;
+      });
+      return tenant ?? undefined;
     } catch (error) {
       console.error("Error getting tenant:", error);
       return undefined;
@@ -90,8 +315,12 @@ export class MongoStorage implements IStorage {
 
   async getTenantByDomain(domain: string): Promise<Tenant | undefined> {
     try {
-      const tenant = await db.collection("tenants").findOne({ domain });
-      return tenant as Tenant | undefined;
+      // Unknown domains are answered from the cache once every tenant is loaded
+      const tenant = await this.tenantsByDomain.getOrLoad(domain, async () => {
+        if (this.tenantSetComplete) return null;
+        return await db.collection("tenants").findOne({ domain }) as Tenant | null;
+      });
+      return tenant ?? undefined;
     } catch (error) {
       console.error("Error getting tenant by domain:", error);
       return undefined;
@@ -108,6 +337,7 @@ export class MongoStorage implements IStorage {
     };
     
     await db.collection("tenants").insertOne(tenant);
+    this.cacheTenant(tenant as Tenant);
     return tenant as Tenant;
   }
 
@@ -123,6 +353,11 @@ export class MongoStorage implements IStorage {
         },
         { returnDocument: "after" }
       );
+      // The domain may have changed, so drop entries under the old one first
+      this.forgetTenant(tenantId);
+      if (result) {
+        this.cacheTenant(result as Tenant);
+      }
       return result as Tenant | undefined;
     } catch (error) {
       console.error("Error updating tenant:", error);
@@ -133,6 +368,7 @@ export class MongoStorage implements IStorage {
   async deleteTenant(tenantId: string): Promise<boolean> {
     try {
       const result = await db.collection("tenants").deleteOne({ _id: new ObjectId(tenantId) });
+      this.forgetTenant(tenantId);
       return result.deletedCount > 0;
     } catch (error) {
       console.error("Error deleting tenant:", error);
@@ -186,18 +422,22 @@ export class MongoStorage implements IStorage {
 
   async createUser(insertUser: InsertUser): Promise<User> {
     const result = await db.collection('users').insertOne(insertUser);
+    usageCounters.userCreated();
     return { ...insertUser, _id: new ObjectId(result.insertedId.toString()) } as User;
   }
 
   async createClient(clientData: Omit<InsertClient, "clientId" | "clientSecret">): Promise<Client> {
+    // Only the hash is stored; the plaintext secret is returned to the caller once
+    const clientSecret = generateClientSecret();
     const client = {
       ...clientData,
       clientId: crypto.randomBytes(16).toString('hex'),
-      clientSecret: crypto.randomBytes(32).toString('hex'),
+      clientSecretHash: hashClientSecret(clientSecret),
       createdAt: new Date()
     };
     const result = await db.collection('clients').insertOne(client);
-    return { ...client, _id: new ObjectId(result.insertedId.toString()) } as Client;
+    this.clientCache.delete(client.clientId);
+    return { ...client, clientSecret, _id: new ObjectId(result.insertedId.toString()) } as Client;
   }
 
   async getClientById(id: string): Promise<Client | undefined> {
@@ -206,8 +446,10 @@ export class MongoStorage implements IStorage {
   }
 
   async getClientByClientId(clientId: string): Promise<Client | undefined> {
-    const client = await db.collection('clients').findOne({ clientId });
-    return client as Client | undefined;
+    const client = await this.clientCache.getOrLoad(clientId, async () => {
+      return await db.collection('clients').findOne({ clientId }) as Client | null;
+    });
+    return client ?? undefined;
   }
 
   async listClientsByUser(userId: string): Promise<Client[]> {
@@ -215,7 +457,7 @@ export class MongoStorage implements IStorage {
     return clients as Client[];
   }
   
-  async updateClient(id: string, clientData: Partial<Omit<Client, "_id" | "clientId" | "clientSecret">>): Promise<Client | undefined> {
+  async updateClient(id: string, clientData: Partial<Omit<Client, "_id" | "clientId" | "clientSecret" | "clientSecretHash">>): Promise<Client | undefined> {
     try {
       const objId = new ObjectId(id);
       
@@ -224,6 +466,7 @@ export class MongoStorage implements IStorage {
       delete updateData._id;
       delete updateData.clientId;
       delete updateData.clientSecret;
+      delete updateData.clientSecretHash;
       
       // Set update time
       updateData.updatedAt = new Date();
@@ -235,6 +478,7 @@ export class MongoStorage implements IStorage {
       );
       
       if (!result) return undefined;
+      this.clientCache.delete(result.clientId);
       
       return {
         ...result,
@@ -246,6 +490,22 @@ export class MongoStorage implements IStorage {
     }
   }
 
+  async rotateClientSecret(id: string): Promise<Client | undefined> {
+    // The old secret stops working at once; the new plaintext is returned to the caller once
+    const clientSecret = generateClientSecret();
+    const result = await db.collection('clients').findOneAndUpdate(
+      { _id: new ObjectId(id) },
+      {
+        $set: { clientSecretHash: hashClientSecret(clientSecret), updatedAt: new Date() },
+        $unset: { clientSecret: "" }
+      },
+      { returnDocument: 'after' }
+    );
+    if (!result) return undefined;
+    this.clientCache.delete(result.clientId);
+    return { ...result, clientSecret } as Client;
+  }
+
   async deleteClient(id: string): Promise<boolean> {
     try {
       const objId = new ObjectId(id);
@@ -262,6 +522,7 @@ export class MongoStorage implements IStorage {
       
       // Finally delete the client
       const result = await db.collection('clients').deleteOne({ _id: objId });
+      this.clientCache.delete(client.clientId);
       
       return result.deletedCount === 1;
     } catch (error) {
@@ -286,11 +547,16 @@ export class MongoStorage implements IStorage {
 
   async createToken(tokenData: InsertToken): Promise<Token> {
     const result = await db.collection('tokens').insertOne(tokenData);
+    usageCounters.tokenIssued(tokenData.expiresAt);
     return { ...tokenData, _id: result.insertedId } as Token;
   }
 
   async getTokenByAccessToken(accessToken: string): Promise<Token | undefined> {
-    const token = await db.collection('tokens').findOne({ accessToken });
+    return this.getTokenByJti(accessTokenId(accessToken));
+  }
+
+  async getTokenByJti(jti: string): Promise<Token | undefined> {
+    const token = await db.collection('tokens').findOne({ jti });
     return token as Token | undefined;
   }
 
@@ -299,35 +565,108 @@ export class MongoStorage implements IStorage {
     return token as Token | undefined;
   }
 
+  async getTokensByRefreshTokens(refreshTokens: string[]): Promise<Token[]> {
+    const tokens = await db.collection('tokens')
+      .find({ refreshToken: { $in: refreshTokens } })
+      .toArray();
+    return tokens as unknown as Token[];
+  }
+
   async revokeAccessToken(accessToken: string): Promise<void> {
+    // Only tokens this server signed get an entry. Any client could
+    // otherwise post forged JWTs with made-up jtis and far-future exps, and
+    // every node would hold each one in memory until that exp.
+    let payload: { exp?: number; jti?: string };
+    try {
+      payload = await jwtService.verifyToken(accessToken);
+    } catch (error) {
+      // Forged, expired or already revoked: nothing left to deny
+      return;
+    }
+    const jti = accessTokenId(accessToken, payload);
+
+    // The entry only matters until the token would have expired anyway
+    const latestExpiry = Date.now() + ACCESS_TOKEN_MAX_LIFETIME_MS;
+    const expiresAt = new Date(Math.min(payload.exp ? payload.exp * 1000 : latestExpiry, latestExpiry));
+
     // We can't actually revoke a JWT since it's stateless, but we can add it to a 
     // revocation list in the database to check during validation
     await db.collection('revokedTokens').insertOne({
-      token: accessToken,
+      tokenId: jti,
       type: 'access_token',
-      revokedAt: new Date()
+      revokedAt: new Date(),
+      expiresAt
     });
+    revocationList.add(jti, expiresAt.getTime());
+    usageCounters.revocationRecorded(expiresAt);
     
     // Also update the token record to mark it as revoked
-    await db.collection('tokens').updateOne(
-      { accessToken },
-      { $set: { revoked: true, revokedAt: new Date() } }
+    const record = await db.collection('tokens').findOneAndUpdate(
+      { jti, revoked: { $ne: true } },
+      { $set: { revoked: true, revokedAt: new Date() } },
+      { projection: { expiresAt: 1 } }
     );
+    if (record) {
+      usageCounters.tokenRevoked(record.expiresAt);
+    }
+  }
+
+  /**
+   * Authoritative revocation check against MongoDB, bypassing the in-memory
+   * revocation list. Used by strict-mode introspection.
+   */
+  async isAccessTokenRevoked(tokenId: string): Promise<boolean> {
+    const revoked = await db.collection('revokedTokens').findOne(
+      { tokenId, type: 'access_token' },
+      { projection: { _id: 1 } }
+    );
+    return revoked !== null;
+  }
+
+  /**
+   * Which of the given access token ids are revoked, in a single query.
+   */
+  async getRevokedAccessTokenIds(tokenIds: string[]): Promise<Set<string>> {
+    const revoked = await db.collection('revokedTokens')
+      .find(
+        { tokenId: { $in: tokenIds }, type: 'access_token' },
+        { projection: { _id: 0, tokenId: 1 } }
+      )
+      .toArray();
+    return new Set(revoked.map(doc => doc.tokenId as string));
   }
 
   async revokeRefreshToken(refreshToken: string): Promise<void> {
-    // Add refresh token to revocation list
-    await db.collection('revokedTokens').insertOne({
-      token: refreshToken,
-      type: 'refresh_token',
-      revokedAt: new Date()
-    });
-    
     // Also update the token record to mark it as revoked
-    await db.collection('tokens').updateOne(
+    const record = await db.collection('tokens').findOneAndUpdate(
       { refreshToken },
       { $set: { revoked: true, revokedAt: new Date() } }
     );
+
+    // Add refresh token to revocation list
+    const expiresAt = record?.expiresAt ?? new Date(Date.now() + 7 * 24 * 60 * 60 * 1000);
+    await db.collection('revokedTokens').insertOne({
+      tokenId: tokenDigest(refreshToken),
+      type: 'refresh_token',
+      revokedAt: new Date(),
+      expiresAt
+    });
+    usageCounters.revocationRecorded(expiresAt);
+
+    // The paired access token stops being valid along with its refresh token
+    if (record?.jti && !record.revoked) {
+      await db.collection('revokedTokens').insertOne({
+        tokenId: record.jti,
+        type: 'access_token',
+        revokedAt: new Date(),
+        expiresAt: record.expiresAt
+      });
+      revocationList.add(record.jti, new Date(record.expiresAt).getTime());
+      usageCounters.revocationRecorded(record.expiresAt);
+    }
+    if (record && !record.revoked) {
+      usageCounters.tokenRevoked(record.expiresAt);
+    }
   }
 
   async listUsers(): Promise<User[]> {
@@ -346,6 +685,41 @@ export class MongoStorage implements IStorage {
     })) as unknown as Client[];
   }
 
+  /**
+   * One page of audit events, newest first.
+   */
+  async listAuditLogs(query: AuditLogQuery, limit: number, cursor?: string): Promise<AuditLogPage> {
+    const docs = await db.collection('auditLogs')
+      .find(auditLogFilter(query, cursor))
+      .sort({ timestamp: -1, _id: -1 })
+      .limit(limit + 1)
+      .toArray();
+
+    const events = docs.slice(0, limit).map(toAuditLog);
+    return {
+      events,
+      nextCursor: docs.length > limit ? encodeAuditCursor(events[events.length - 1]) : null
+    };
+  }
+
+  /**
+   * All matching audit events, newest first, read through a cursor so the
+   * result set is never held in memory.
+   */
+  async *streamAuditLogs(query: AuditLogQuery): AsyncIterable<AuditLog> {
+    const cursor = db.collection('auditLogs')
+      .find(auditLogFilter(query))
+      .sort({ timestamp: -1, _id: -1 })
+      .batchSize(1000);
+    try {
+      for await (const doc of cursor) {
+        yield toAuditLog(doc);
+      }
+    } finally {
+      await cursor.close();
+    }
+  }
+
   async updateUser(userId: string, userData: Partial<Omit<User, '_id'>>): Promise<User | undefined> {
     try {
       const id = new ObjectId(userId);
@@ -387,7 +761,7 @@ export class MongoStorage implements IStorage {
       
       // First delete all related data
       // 1. Delete all user's WebAuthn credentials
-      await db.collection('webauthnCredentials').deleteMany({ userId: userId.toString() });
+      await db.collection('webauthn_credentials').deleteMany({ userId: userId.toString() });
       
       // 2. Delete all user's clients and related tokens/auth codes
       const userClients = await db.collection('clients').find({ userId: userId.toString() }).toArray();
@@ -401,9 +775,15 @@ export class MongoStorage implements IStorage {
       
       // Delete all clients
       await db.collection('clients').deleteMany({ userId: userId.toString() });
+      for (const client of userClients) {
+        this.clientCache.delete(client.clientId);
+      }
       
       // Finally delete the user
       const result = await db.collection('users').deleteOne({ _id: id });
+      if (result.deletedCount === 1) {
+        usageCounters.userDeleted();
+      }
       
       return result.deletedCount === 1;
     } catch (error) {
@@ -420,6 +800,21 @@ export class MongoStorage implements IStorage {
     );
   }
 
+  /**
+   * Set the user's lastLogin and count them as active.
+   */
+  async recordLogin(userId: string): Promise<void> {
+    const now = new Date();
+    const previous = await db.collection('users').findOneAndUpdate(
+      { _id: new ObjectId(userId) },
+      { $set: { lastLogin: now } },
+      { projection: { lastLogin: 1 } }
+    );
+    if (previous) {
+      usageCounters.userLoggedIn(previous.lastLogin, now);
+    }
+  }
+
   async createWebAuthnCredential(credential: InsertWebAuthnCredential): Promise<WebAuthnCredential> {
     const result = await db.collection('webauthn_credentials').insertOne(credential);
     return { ...credential, _id: result.insertedId } as WebAuthnCredential;
@@ -443,4 +838,7 @@ export class MongoStorage implements IStorage {
   }
 }
 
+// Per-method latency histograms (mongo_operation_duration_seconds)
+instrumentAsyncMethods(MongoStorage.prototype, mongoOperationDuration);
+
 export const storage = new MongoStorage();
\ No newline at end of file
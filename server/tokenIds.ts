@@ -0,0 +1,24 @@
+/**
+ * Token Identifiers
+ *
+ * Tokens are stored, revoked and looked up by a short fixed-size id rather
+ * than by the full token string. Access tokens are identified by their `jti`
+ * claim; tokens issued before jti was added, and opaque refresh tokens, are
+ * identified by the SHA-256 digest of the token.
+ */
+
+import crypto from "crypto";
+import jwt from "jsonwebtoken";
+
+export function generateJti(): string {
+  return crypto.randomBytes(16).toString('base64url');
+}
+
+export function tokenDigest(token: string): string {
+  return crypto.createHash('sha256').update(token).digest('base64url');
+}
+
+export function accessTokenId(accessToken: string, payload?: { jti?: unknown } | null): string {
+  const claims = payload ?? (jwt.decode(accessToken) as { jti?: unknown } | null);
+  return typeof claims?.jti === 'string' ? claims.jti : tokenDigest(accessToken);
+}
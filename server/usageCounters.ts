@@ -0,0 +1,202 @@
+/**
+ * Usage Counters
+ *
+ * Token and user counts for the health endpoint and /metrics, kept in memory
+ * so reporting them never touches the database.
+ *
+ * Tokens, revocation entries and user activity all expire (token records and
+ * revocation entries through TTL indexes, activity after
+ * ACTIVE_USER_WINDOW_MS). Each count is therefore kept as per-minute buckets
+ * keyed by expiry time: storage adds to a bucket when it writes a record, and
+ * a bucket drops out of the total once its minute has passed, mirroring what
+ * the TTL monitor does to the documents.
+ *
+ * Writes made by other replicas, bulk deletes and TTL lag are not seen
+ * locally, so every USAGE_RECONCILE_INTERVAL_MS the buckets are rebuilt from
+ * MongoDB with one grouped aggregation per collection (on the expiresAt and
+ * lastLogin indexes), and the stored totals are refreshed with
+ * estimatedDocumentCount, which reads collection metadata only.
+ */
+
+import { db } from "./db";
+
+const RECONCILE_INTERVAL_MS = parseInt(process.env.USAGE_RECONCILE_INTERVAL_MS || String(15 * 60 * 1000), 10);
+const ACTIVE_USER_WINDOW_MS = parseInt(process.env.ACTIVE_USER_WINDOW_MS || String(24 * 60 * 60 * 1000), 10);
+const BUCKET_MS = 60 * 1000;
+
+function bucketFor(expiresAt: Date | number): number {
+  return Math.ceil(new Date(expiresAt).getTime() / BUCKET_MS);
+}
+
+/**
+ * A count of records that each stop counting at their own expiry time.
+ */
+export class ExpiringCounter {
+  private buckets = new Map<number, number>(); // expiry minute -> count
+  private total = 0;
+  private sweptBucket = 0;
+
+  add(expiresAt: Date | number, count = 1) {
+    const bucket = bucketFor(expiresAt);
+    if (bucket <= bucketFor(Date.now())) return;
+    this.buckets.set(bucket, (this.buckets.get(bucket) ?? 0) + count);
+    this.total += count;
+  }
+
+  remove(expiresAt: Date | number, count = 1) {
+    const bucket = bucketFor(expiresAt);
+    const current = this.buckets.get(bucket);
+    if (!current) return; // Already expired, or counted by another replica
+    const removed = Math.min(current, count);
+    if (current === removed) {
+      this.buckets.delete(bucket);
+    } else {
+      this.buckets.set(bucket, current - removed);
+    }
+    this.total -= removed;
+  }
+
+  value(now = Date.now()): number {
+    const nowBucket = bucketFor(now);
+    // Buckets expire a minute at a time, so sweep at most once per minute
+    if (nowBucket > this.sweptBucket) {
+      this.sweptBucket = nowBucket;
+      for (const [bucket, count] of this.buckets) {
+        if (bucket <= nowBucket) {
+          this.buckets.delete(bucket);
+          this.total -= count;
+        }
+      }
+    }
+    return this.total;
+  }
+
+  reset(buckets: { bucket: number; count: number }[]) {
+    this.buckets = new Map(buckets.filter(entry => entry.count > 0).map(entry => [entry.bucket, entry.count]));
+    this.total = buckets.reduce((sum, entry) => sum + Math.max(entry.count, 0), 0);
+    this.sweptBucket = 0;
+  }
+}
+
+// Minute bucket of a date field (plus an offset), computed server-side
+function bucketExpression(field: string, offsetMs = 0) {
+  return { $ceil: { $divide: [{ $add: [{ $toLong: field }, offsetMs] }, BUCKET_MS] } };
+}
+
+class UsageCounters {
+  private tokens = new ExpiringCounter();       // token records (active or revoked) until expiry
+  private activeTokens = new ExpiringCounter(); // token records not revoked
+  private revocations = new ExpiringCounter();  // revokedTokens entries
+  private activeUsers = new ExpiringCounter();  // users seen within ACTIVE_USER_WINDOW_MS
+  private totalUsers = 0;
+  private storedTokens = 0; // estimatedDocumentCount, including expired records awaiting TTL removal
+  private reconcileTimer: NodeJS.Timeout | null = null;
+  private lastReconciledAt: Date | null = null;
+  private reconcileErrors = 0;
+
+  tokenIssued(expiresAt: Date) {
+    this.tokens.add(expiresAt);
+    this.activeTokens.add(expiresAt);
+  }
+
+  tokenRevoked(expiresAt: Date) {
+    this.activeTokens.remove(expiresAt);
+  }
+
+  revocationRecorded(expiresAt: Date) {
+    this.revocations.add(expiresAt);
+  }
+
+  userCreated() {
+    this.totalUsers++;
+  }
+
+  userDeleted() {
+    this.totalUsers = Math.max(0, this.totalUsers - 1);
+  }
+
+  /**
+   * previousLogin is the user's lastLogin before this login.
+   */
+  userLoggedIn(previousLogin: Date | undefined, now = new Date()) {
+    if (previousLogin) {
+      this.activeUsers.remove(previousLogin.getTime() + ACTIVE_USER_WINDOW_MS);
+    }
+    this.activeUsers.add(now.getTime() + ACTIVE_USER_WINDOW_MS);
+  }
+
+  /**
+   * Rebuild every count from MongoDB.
+   */
+  async reconcile() {
+    const now = new Date();
+    const [tokenBuckets, revocationBuckets, userBuckets, storedTokens, totalUsers] = await Promise.all([
+      db.collection('tokens').aggregate<{ _id: number; total: number; active: number }>([
+        { $match: { expiresAt: { $gt: now } } },
+        {
+          $group: {
+            _id: bucketExpression('$expiresAt'),
+            total: { $sum: 1 },
+            active: { $sum: { $cond: [{ $eq: ['$revoked', true] }, 0, 1] } }
+          }
+        }
+      ]).toArray(),
+      db.collection('revokedTokens').aggregate<{ _id: number; count: number }>([
+        { $match: { expiresAt: { $gt: now } } },
+        { $group: { _id: bucketExpression('$expiresAt'), count: { $sum: 1 } } }
+      ]).toArray(),
+      db.collection('users').aggregate<{ _id: number; count: number }>([
+        { $match: { lastLogin: { $gt: new Date(now.getTime() - ACTIVE_USER_WINDOW_MS) } } },
+        { $group: { _id: bucketExpression('$lastLogin', ACTIVE_USER_WINDOW_MS), count: { $sum: 1 } } }
+      ]).toArray(),
+      db.collection('tokens').estimatedDocumentCount(),
+      db.collection('users').estimatedDocumentCount()
+    ]);
+
+    this.tokens.reset(tokenBuckets.map(doc => ({ bucket: doc._id, count: doc.total })));
+    this.activeTokens.reset(tokenBuckets.map(doc => ({ bucket: doc._id, count: doc.active })));
+    this.revocations.reset(revocationBuckets.map(doc => ({ bucket: doc._id, count: doc.count })));
+    this.activeUsers.reset(userBuckets.map(doc => ({ bucket: doc._id, count: doc.count })));
+    this.storedTokens = storedTokens;
+    this.totalUsers = totalUsers;
+    this.lastReconciledAt = now;
+  }
+
+  /**
+   * Load the counts and keep reconciling them in the background. Startup
+   * continues if MongoDB is unavailable; the next reconcile catches up.
+   */
+  async start() {
+    try {
+      await this.reconcile();
+    } catch (error) {
+      this.reconcileErrors++;
+      console.error('Usage counter reconcile failed:', error);
+    }
+
+    if (!this.reconcileTimer && RECONCILE_INTERVAL_MS > 0) {
+      this.reconcileTimer = setInterval(() => {
+        this.reconcile().catch(error => {
+          this.reconcileErrors++;
+          console.error('Usage counter reconcile failed:', error);
+        });
+      }, RECONCILE_INTERVAL_MS);
+      this.reconcileTimer.unref();
+    }
+  }
+
+  getStats() {
+    return {
+      totalTokens: this.tokens.value(),
+      activeTokens: this.activeTokens.value(),
+      revokedTokens: this.revocations.value(),
+      storedTokens: this.storedTokens,
+      totalUsers: this.totalUsers,
+      activeUsers: this.activeUsers.value(),
+      lastReconciledAt: this.lastReconciledAt?.toISOString() ?? null,
+      reconcileErrors: this.reconcileErrors
+    };
+  }
+}
+
+export const usageCounters = new UsageCounters();
@@ -37,6 +37,24 @@ export const insertTenantSchema = z.object({
     maxUsersAllowed: z.number().min(1).default(1000),
     enableMFA: z.boolean().default(true),
     enablePasskeys: z.boolean().default(true),
+    signingAlgorithm: z.enum(["RS256", "ES256", "EdDSA"]).optional(), // Token signing algorithm; must be enabled via JWT_SIGNING_ALGS
+    // Rate limit quota overrides per limiter and dimension, e.g. { oauth: { tenant: 20000, client: 2000 } }
+    rateLimits: z.record(
+      z.enum(["login", "oauth", "general", "admin"]),
+      z.object({
+        ip: z.number().int().min(1).optional(),
+        client: z.number().int().min(1).optional(),
+        username: z.number().int().min(1).optional(),
+        tenant: z.number().int().min(1).optional(),
+      })
+    ).optional(),
+    // Request threat scanning (securityMonitoring); patterns: directory_traversal, xss, sql_injection, code_injection
+    threatScanning: z.object({
+      enabled: z.boolean().optional(),
+      maxBodyBytes: z.number().int().min(0).max(1024 * 1024).optional(),
+      disabledPatterns: z.array(z.string()).optional(),
+      keywords: z.array(z.string().min(1).max(256)).max(500).optional(),
+    }).optional(),
     
     // Branding
     logoUrl: z.string().url().optional(),
@@ -160,16 +178,23 @@ export const insertAuthCodeSchema = z.object({
 /**
  * JWT Key Pair Schema
  * 
- * Stores RSA key pairs used for signing and verifying JWT access tokens.
- * Supports key rotation for enhanced security - multiple keys can exist
- * with only one being active for signing new tokens.
+ * Stores key pairs (RSA, P-256 or Ed25519) used for signing and verifying
+ * JWT access tokens. Supports key rotation for enhanced security - multiple
+ * keys can exist with only one per algorithm being active for signing new
+ * tokens. The next key is
+ * published ahead of activation, and retired keys remain valid for
+ * verification until verifyUntil.
  */
 export const insertJwtKeysSchema = z.object({
-  privateKey: z.string(), // RSA private key for signing tokens
-  publicKey: z.string(), // RSA public key for verifying tokens
-  algorithm: z.string(), // Signing algorithm (e.g., "RS256")
+  privateKey: z.string(), // Private key (PKCS#8 PEM) for signing tokens
+  publicKey: z.string(), // Public key (SPKI PEM) for verifying tokens
+  algorithm: z.string(), // Signing algorithm ("RS256", "ES256" or "EdDSA")
   createdAt: z.date(), // When this key pair was generated
   isActive: z.boolean(), // Whether this key is currently used for signing
+  status: z.enum(["next", "active", "retired"]).optional(), // Rotation lifecycle stage
+  activatesAt: z.date().optional(), // When a pre-published "next" key starts signing
+  activatedAt: z.date().optional(), // When this key started signing
+  verifyUntil: z.date().optional(), // Retired keys still verify (and appear in the JWKS) until this time
 });
 
 /**
@@ -183,7 +208,7 @@ export const insertJwtKeysSchema = z.object({
 export const insertTokenSchema = z.object({
   // Tenant association - REQUIRED for multi-tenancy
   tenantId: z.string().min(1, "Tenant ID is required"),
-  accessToken: z.string(), // The access token (JWT format)
+  jti: z.string(), // The access token's jti claim (the JWT itself is not stored)
   refreshToken: z.string(), // The refresh token (opaque string)
   clientId: z.string(), // Client that owns this token
   userId: z.string(), // User this token represents
@@ -220,7 +245,8 @@ export type InsertClient = z.infer<typeof insertClientSchema>;
 export type Client = InsertClient & {
   _id: ObjectId;
   clientId: string; // Auto-generated unique identifier
-  clientSecret: string; // Auto-generated secret for authentication
+  clientSecretHash?: string; // hmac-sha256:<hex> keyed with CLIENT_SECRET_PEPPER
+  clientSecret?: string; // Plaintext secret; only present in the response to client creation
   createdAt: Date; // When the client was registered
 };
 